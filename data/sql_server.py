@@ -9,27 +9,329 @@ Students should EXTEND this server by implementing
 the methods below.
 """
 
+import logging
+import queue
 import socket
+import struct
 import sys
 import threading
+import time
 import sqlite3
-from typing import Tuple
+from typing import Any, Dict, List, Optional, Tuple
 
 SERVER_NAME = "STOMP_PYTHON_SQL_SERVER"  # DO NOT CHANGE!
 DB_FILE = "stomp_server.db"              # DO NOT CHANGE!
 db_lock = threading.Lock()               # For thread-safe DB access
 
+# per request logging is debug level (--verbose), the rest is info
+log = logging.getLogger(SERVER_NAME)
 
-def recv_null_terminated(sock: socket.socket) -> str:
-    data = b""
+
+def recv_null_terminated(sock: socket.socket, pending: bytearray) -> str:
+    # the bytes after the terminator are kept in pending, a client may send
+    # several statements without waiting for the answers (they are answered in order).
+    # only the bytes received since the last look are searched for the terminator
+    start = 0
     while True:
-        chunk = sock.recv(1024)
+        end = pending.find(b"\0", start)
+        if end >= 0:
+            break
+        start = len(pending)
+        chunk = sock.recv(65536)
         if not chunk:
             return ""
-        data += chunk
-        if b"\0" in data:
-            msg, _ = data.split(b"\0", 1)
-            return msg.decode("utf-8", errors="replace")
+        pending += chunk
+    msg = bytes(pending[:end])
+    del pending[:end + 1]
+    return msg.decode("utf-8", errors="replace")
+
+
+# The binary mode of a connection, asked for by sending the text message BINARY
+# (answered SUCCESS|binary). after it every message is a frame: its length
+# (int32, big endian, not counting itself), its type (byte) and its payload.
+# client frames:
+#   PREPARE  int32 statement id, utf-8 sql with ? parameters. not answered
+#   EXECUTE  int32 statement id, int16 parameters, int32 rows, the values row
+#            by row. several rows run the statement once per row (executemany)
+# server frames, every EXECUTE is answered by ROWS frames and then DONE or ERROR:
+#   ROWS     int16 columns, int32 rows, the values row by row
+#   DONE     int64 rows affected (-1 for a query)
+#   ERROR    utf-8 message
+# a value is a tag (byte) and its data: NULL, INTEGER int64, REAL float64,
+# TEXT int32 length and utf-8 bytes.
+BINARY_HANDSHAKE = "BINARY"
+FRAME_PREPARE, FRAME_EXECUTE = 1, 2
+FRAME_ROWS, FRAME_DONE, FRAME_ERROR = 1, 2, 3
+VALUE_NULL, VALUE_INTEGER, VALUE_REAL, VALUE_TEXT = 0, 1, 2, 3
+ROWS_PER_FRAME = 500
+
+
+def recv_frame(sock: socket.socket, pending: bytearray) -> Optional[Tuple[int, memoryview]]:
+    while len(pending) < 4 or len(pending) < 4 + struct.unpack_from(">i", pending)[0]:
+        chunk = sock.recv(65536)
+        if not chunk:
+            return None
+        pending += chunk
+    length = struct.unpack_from(">i", pending)[0]
+    frame = bytes(pending[4:4 + length])
+    del pending[:4 + length]
+    return frame[0], memoryview(frame)[1:]
+
+
+def read_value(data: memoryview, pos: int) -> Tuple[Any, int]:
+    tag = data[pos]
+    pos += 1
+    if tag == VALUE_INTEGER:
+        return struct.unpack_from(">q", data, pos)[0], pos + 8
+    if tag == VALUE_REAL:
+        return struct.unpack_from(">d", data, pos)[0], pos + 8
+    if tag == VALUE_TEXT:
+        length = struct.unpack_from(">i", data, pos)[0]
+        pos += 4
+        return bytes(data[pos:pos + length]).decode("utf-8"), pos + length
+    return None, pos
+
+
+def write_value(out: bytearray, value: Any) -> None:
+    if value is None:
+        out.append(VALUE_NULL)
+    elif isinstance(value, bool) or isinstance(value, int):
+        out.append(VALUE_INTEGER)
+        out += struct.pack(">q", int(value))
+    elif isinstance(value, float):
+        out.append(VALUE_REAL)
+        out += struct.pack(">d", value)
+    else:
+        text = (value.decode("utf-8", errors="replace") if isinstance(value, bytes) else str(value)).encode("utf-8")
+        out.append(VALUE_TEXT)
+        out += struct.pack(">i", len(text))
+        out += text
+
+
+def write_frame(out: bytearray, frame_type: int, payload: bytes) -> None:
+    out += struct.pack(">iB", len(payload) + 1, frame_type)
+    out += payload
+
+
+def frame_pending(pending: bytearray) -> bool:
+    """True if a whole frame was received and not read yet"""
+    return len(pending) >= 4 and len(pending) >= 4 + struct.unpack_from(">i", pending)[0]
+
+
+def is_query(sql: str) -> bool:
+    return sql.lstrip().upper().startswith("SELECT")
+
+
+class WriteRequest:
+    """A statement for the writer, run once per row, answered once its group is committed"""
+    __slots__ = ("sql", "rows", "done", "rowcount", "error")
+
+    def __init__(self, sql: str, rows: List[Tuple[Any, ...]]):
+        self.sql = sql
+        self.rows = rows
+        self.done = threading.Event()
+        self.rowcount = -1
+        self.error: Optional[str] = None
+
+    def wait(self) -> "WriteRequest":
+        self.done.wait()
+        return self
+
+
+class SqlService:
+    """The database of the server: a single writer connection and a pool of readers.
+
+    the database is in WAL mode, the readers read while the writer writes. every
+    write goes to the writer thread, which runs the writes queued meanwhile in one
+    transaction, each in its own savepoint so a failing statement fails alone. when
+    several writes are queued more are expected, the ones arriving within the group
+    commit window join them. a write is answered after its transaction is committed.
+    """
+
+    def __init__(self, db_file: str, readers: int = 4, group_commit_window: float = 0.002,
+                 max_group: int = 1000):
+        self._db_file = db_file
+        self._window = group_commit_window
+        self._max_group = max_group
+        self._writes: "queue.Queue[Optional[WriteRequest]]" = queue.Queue()
+        writer = sqlite3.connect(db_file, isolation_level=None, check_same_thread=False, cached_statements=256)
+        writer.execute("PRAGMA journal_mode = WAL")
+        self._writer = writer
+        self._readers: "queue.LifoQueue[sqlite3.Connection]" = queue.LifoQueue()
+        for _ in range(readers):
+            reader = sqlite3.connect(db_file, check_same_thread=False, cached_statements=256)
+            self._readers.put(reader)
+        self._reader_count = readers
+        self._thread = threading.Thread(target=self._write_loop, name="sql-writer", daemon=True)
+        self._thread.start()
+
+    def submit(self, sql: str, rows: List[Tuple[Any, ...]]) -> WriteRequest:
+        """Queues a write, wait() on the request for its answer"""
+        request = WriteRequest(sql, rows)
+        self._writes.put(request)
+        return request
+
+    def query(self, sql: str, params: Tuple[Any, ...] = ()) -> Tuple[sqlite3.Connection, sqlite3.Cursor]:
+        """Runs a query on a reader, give the reader back with release() once the rows are read"""
+        reader = self._readers.get()
+        try:
+            return reader, reader.execute(sql, params)
+        except BaseException:
+            self._readers.put(reader)
+            raise
+
+    def release(self, reader: sqlite3.Connection) -> None:
+        self._readers.put(reader)
+
+    def close(self) -> None:
+        self._writes.put(None)
+        self._thread.join()
+        for _ in range(self._reader_count):
+            self._readers.get().close()
+
+    def _write_loop(self) -> None:
+        while True:
+            first = self._writes.get()
+            if first is None:
+                break
+            group = [first]
+            closing = False
+            deadline = time.monotonic() + self._window
+            while len(group) < self._max_group:
+                try:
+                    # what is already queued, a write alone is not kept waiting for company
+                    timeout = deadline - time.monotonic()
+                    if timeout > 0 and len(group) > 1:
+                        request = self._writes.get(timeout=timeout)
+                    else:
+                        request = self._writes.get_nowait()
+                except queue.Empty:
+                    break
+                if request is None:
+                    closing = True
+                    break
+                group.append(request)
+            self._commit(group)
+            if closing:
+                break
+        self._writer.close()
+
+    def _commit(self, group: List[WriteRequest]) -> None:
+        writer = self._writer
+        try:
+            writer.execute("BEGIN IMMEDIATE")
+            for request in group:
+                writer.execute("SAVEPOINT request")
+                try:
+                    if len(request.rows) == 1:
+                        cursor = writer.execute(request.sql, request.rows[0])
+                    else:
+                        cursor = writer.executemany(request.sql, request.rows)
+                    request.rowcount = cursor.rowcount
+                    cursor.fetchall()  # a statement returning rows holds its savepoint until they are read
+                    writer.execute("RELEASE request")
+                except Exception as e:
+                    writer.execute("ROLLBACK TO request")
+                    writer.execute("RELEASE request")
+                    request.error = str(e)
+            writer.execute("COMMIT")
+            log.debug("committed %d statements together", len(group))
+        except Exception as e:
+            if writer.in_transaction:
+                writer.execute("ROLLBACK")
+            for request in group:
+                request.error = request.error or str(e)
+        for request in group:
+            request.done.set()
+
+
+service: Optional[SqlService] = None
+
+
+def answer_query(sql: str, params: Tuple[Any, ...], out: bytearray) -> None:
+    """Runs a query on a reader, writing its answer frames to out"""
+    try:
+        reader, cursor = service.query(sql, params)
+    except Exception as e:
+        write_frame(out, FRAME_ERROR, str(e).encode("utf-8"))
+        return
+    try:
+        while True:
+            batch = cursor.fetchmany(ROWS_PER_FRAME)
+            if not batch:
+                break
+            payload = bytearray(struct.pack(">hi", len(cursor.description), len(batch)))
+            for row in batch:
+                for value in row:
+                    write_value(payload, value)
+            write_frame(out, FRAME_ROWS, payload)
+        write_frame(out, FRAME_DONE, struct.pack(">q", -1))
+    except Exception as e:
+        write_frame(out, FRAME_ERROR, str(e).encode("utf-8"))
+    finally:
+        service.release(reader)
+
+
+def answer_writes(writes: List[WriteRequest], out: bytearray) -> None:
+    """Waits for the writes, writing their answers to out in their order"""
+    for request in writes:
+        request.wait()
+        if request.error is None:
+            write_frame(out, FRAME_DONE, struct.pack(">q", request.rowcount))
+        else:
+            write_frame(out, FRAME_ERROR, request.error.encode("utf-8"))
+    writes.clear()
+
+
+def handle_binary(client_socket: socket.socket, pending: bytearray) -> None:
+    """Serves a connection in binary mode.
+
+    the writes sent together are queued together, so they can share a commit, and
+    answered once committed. a query waits for the writes sent before it, so it
+    sees them.
+    """
+    statements: Dict[int, str] = {}
+    writes: List[WriteRequest] = []
+    out = bytearray()
+    try:
+        while True:
+            frame = recv_frame(client_socket, pending)
+            if frame is None:
+                break
+            frame_type, data = frame
+            if frame_type == FRAME_PREPARE:
+                statements[struct.unpack_from(">i", data)[0]] = bytes(data[4:]).decode("utf-8")
+            elif frame_type == FRAME_EXECUTE:
+                statement_id, columns, count = struct.unpack_from(">ihi", data)
+                pos = 10
+                rows = []
+                for _ in range(count):
+                    row = []
+                    for _ in range(columns):
+                        value, pos = read_value(data, pos)
+                        row.append(value)
+                    rows.append(tuple(row))
+                sql = statements.get(statement_id)
+                if sql is not None and not is_query(sql):
+                    writes.append(service.submit(sql, rows))
+                else:
+                    answer_writes(writes, out)
+                    if sql is None:
+                        write_frame(out, FRAME_ERROR, f"unknown statement {statement_id}".encode("utf-8"))
+                    else:
+                        answer_query(sql, rows[0] if rows else (), out)
+            else:
+                answer_writes(writes, out)
+                write_frame(out, FRAME_ERROR, f"unknown frame type {frame_type}".encode("utf-8"))
+            # answering together what was asked together
+            if not frame_pending(pending):
+                answer_writes(writes, out)
+                if out:
+                    client_socket.sendall(out)
+                    out.clear()
+    finally:
+        # the writes still queued are written, nobody waits for their answers
+        writes.clear()
 
 
 def init_database():
@@ -65,94 +367,97 @@ def init_database():
     )
     """)
 
+    # the report reads the sessions and the uploads by username and then newest first, a page at a time
+    cursor.execute("CREATE INDEX IF NOT EXISTS login_history_by_user ON login_history (username, id DESC)")
+    cursor.execute("CREATE INDEX IF NOT EXISTS file_tracking_by_user ON file_tracking (username, id DESC)")
+
     conn.commit()
     conn.close()
 
 
 def execute_sql_command(sql_command: str) -> str:
     """Execute INSERT, UPDATE, DELETE commands"""
-    try:
-        print(f"[SQL_COMMAND] Executing: {sql_command[:100]}..." if len(sql_command) > 100 else f"[SQL_COMMAND] Executing: {sql_command}")
-        conn = sqlite3.connect(DB_FILE)
-        # enable foreign key constraints
-        conn.execute("PRAGMA foreign_keys = ON")  
-        cursor = conn.cursor()
-        cursor.execute(sql_command)
-        conn.commit()
-        rows_affected = cursor.rowcount
-        conn.close()
-        result = f"SUCCESS: {rows_affected} rows affected"
-        print(f"[SQL_COMMAND] Result: {result}")
-        return result
-    except Exception as e:
-        error_msg = f"ERROR: {str(e)}"
-        print(f"[SQL_COMMAND] {error_msg}")
-        return error_msg
+    log.debug("[SQL_COMMAND] Executing: %.100s", sql_command)
+    return command_response(service.submit(sql_command, [()]).wait())
+
+
+def command_response(request: WriteRequest) -> str:
+    if request.error is not None:
+        log.debug("[SQL_COMMAND] ERROR: %s", request.error)
+        return f"ERROR: {request.error}"
+    return f"SUCCESS: {request.rowcount} rows affected"
 
 
+def answer_commands(commands: List[WriteRequest], out: bytearray) -> None:
+    """Waits for the commands, writing their answers to out in their order"""
+    for request in commands:
+        out += (command_response(request.wait()) + "\0").encode('utf-8')
+    commands.clear()
+
 
 def execute_sql_query(sql_query: str) -> str:
     """Execute SELECT queries and return results"""
+    log.debug("[SQL_QUERY] Executing: %.100s", sql_query)
     try:
-        print(f"[SQL_QUERY] Executing: {sql_query[:100]}..." if len(sql_query) > 100 else f"[SQL_QUERY] Executing: {sql_query}")
-        conn = sqlite3.connect(DB_FILE)
-        conn.execute("PRAGMA foreign_keys = ON")  # Enable foreign key constraints
-        cursor = conn.cursor()
-        cursor.execute(sql_query)
-        results = cursor.fetchall()
-        conn.close()
-        
-        # Format results as: SUCCESS|field1,field2,field3|field1,field2,field3...
-        # Each row's fields are comma-separated, rows are pipe-separated
-        if results:
-            formatted_rows: list[str] = []
-            for row in results:
-                # Convert each field to string, replace None with empty string
-                fields = [str(field) if field is not None else "" for field in row]
-                # Join fields with comma
-                formatted_rows.append(",".join(fields))
-            result_str = "SUCCESS|" + "|".join(formatted_rows)
-            print(f"[SQL_QUERY] Result: {len(results)} row(s) returned")
-            return result_str
-        else:
-            print(f"[SQL_QUERY] Result: No rows returned")
-            return "SUCCESS|"
+        reader, cursor = service.query(sql_query)
+        try:
+            results = cursor.fetchall()
+        finally:
+            service.release(reader)
     except Exception as e:
-        error_msg = f"ERROR: {str(e)}"
-        print(f"[SQL_QUERY] {error_msg}")
-        return error_msg
+        log.debug("[SQL_QUERY] ERROR: %s", e)
+        return f"ERROR: {str(e)}"
+
+    # Format results as: SUCCESS|field1,field2,field3|field1,field2,field3...
+    # Each row's fields are comma-separated, rows are pipe-separated
+    formatted_rows: list[str] = []
+    for row in results:
+        # Convert each field to string, replace None with empty string
+        fields = [str(field) if field is not None else "" for field in row]
+        # Join fields with comma
+        formatted_rows.append(",".join(fields))
+    return "SUCCESS|" + "|".join(formatted_rows)
 
 # handle client connections
 def handle_client(client_socket: socket.socket, addr: Tuple[str, int]):
-    print(f"[{SERVER_NAME}] Client connected from {addr}")
+    log.info("Client connected from %s", addr)
 
+    pending = bytearray()
+    # the commands received together are queued together, answered before anything after them
+    commands: List[WriteRequest] = []
+    out = bytearray()
     try:
         while True:
-            message = recv_null_terminated(client_socket)
+            message = recv_null_terminated(client_socket, pending)
             if message == "":
                 break
-
-            print(f"[{SERVER_NAME}] Received from {addr}:")
-            print(f"  {message[:100]}..." if len(message) > 100 else f"  {message}")
+            if message == BINARY_HANDSHAKE:
+                client_socket.sendall(b"SUCCESS|binary\0")
+                handle_binary(client_socket, pending)
+                break
 
             # cheak  to determine if it's a query or command
-            sql_upper = message.strip().upper()
-            if sql_upper.startswith('SELECT'):
+            if is_query(message):
+                answer_commands(commands, out)
                 response = execute_sql_query(message)
+                log.debug("Sending response to %s: %.100s", addr, response)
+                out += (response + "\0").encode('utf-8')
             else:
-                response = execute_sql_command(message)
-            
-            print(f"[{SERVER_NAME}] Sending response to {addr}: {response[:100]}..." if len(response) > 100 else f"[{SERVER_NAME}] Sending response to {addr}: {response}")
-            client_socket.sendall((response + "\0").encode('utf-8'))
+                log.debug("[SQL_COMMAND] Executing: %.100s", message)
+                commands.append(service.submit(message, [()]))
+            if b"\0" not in pending:
+                answer_commands(commands, out)
+                client_socket.sendall(out)
+                out.clear()
 
     except Exception as e:
-        print(f"[{SERVER_NAME}] Error handling client {addr}: {e}")
+        log.warning("Error handling client %s: %s", addr, e)
     finally:
         try:
             client_socket.close()
         except Exception:
             pass
-        print(f"[{SERVER_NAME}] Client {addr} disconnected")
+        log.info("Client %s disconnected", addr)
 
 
 
@@ -164,8 +469,8 @@ def start_server(host="127.0.0.1", port=7778):
     try:
         server_socket.bind((host, port))
         server_socket.listen(5)
-        print(f"[{SERVER_NAME}] Server started on {host}:{port}")
-        print(f"[{SERVER_NAME}] Waiting for connections...")
+        log.info("Server started on %s:%d", host, port)
+        log.info("Waiting for connections...")
 
         while True:
             client_socket, addr = server_socket.accept()
@@ -177,24 +482,44 @@ def start_server(host="127.0.0.1", port=7778):
             t.start()
 
     except KeyboardInterrupt:
-        print(f"\n[{SERVER_NAME}] Shutting down server...")
+        log.info("Shutting down server...")
     finally:
         try:
             server_socket.close()
         except Exception:
             pass
+        service.close()
 
 
 if __name__ == "__main__":
-    print(f"[{SERVER_NAME}] Initializing database...")
+    # usage: [port] [--verbose] [--readers=<n>] [--group-commit-ms=<milliseconds>]
+    options = [arg.strip() for arg in sys.argv[1:] if arg.startswith("--")]
+    arguments = [arg.strip() for arg in sys.argv[1:] if not arg.startswith("--")]
+    logging.basicConfig(level=logging.DEBUG if "--verbose" in options else logging.INFO,
+                        format=f"[{SERVER_NAME}] %(message)s")
+    readers = 4
+    group_commit_ms = 2.0
+    for option in options:
+        name, _, value = option.partition("=")
+        try:
+            if name == "--readers":
+                readers = max(1, int(value))
+            elif name == "--group-commit-ms":
+                group_commit_ms = max(0.0, float(value))
+            elif name != "--verbose":
+                log.warning("Unknown option '%s'", option)
+        except ValueError:
+            log.warning("Invalid value for option '%s'", option)
+    log.info("Initializing database...")
     init_database()
-    print(f"[{SERVER_NAME}] Database initialized")
+    service = SqlService(DB_FILE, readers, group_commit_ms / 1000)
+    log.info("Database initialized, %d readers, group commit window %.1f ms", readers, group_commit_ms)
     port = 7778
-    if len(sys.argv) > 1:
-        raw_port = sys.argv[1].strip()
+    if arguments:
+        raw_port = arguments[0]
         try:
             port = int(raw_port)
         except ValueError:
-            print(f"Invalid port '{raw_port}', falling back to default {port}")
+            log.warning("Invalid port '%s', falling back to default %d", raw_port, port)
 
     start_server(port=port)
@@ -1,5 +1,8 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +14,25 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * decodes all the remaining bytes of the given buffer, passing every
+     * message they complete to the given consumer (in order).
+     * the default implementation feeds the bytes one by one to
+     * {@link #decodeNextByte(byte)}, implementations that can find message
+     * boundaries in bulk should override it.
+     *
+     * @param buffer the bytes to decode, consumed up to its limit
+     * @param onMessage receives every completed message
+     */
+    default void decode(ByteBuffer buffer, Consumer<T> onMessage) {
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                onMessage.accept(nextMessage);
+            }
+        }
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -19,4 +41,16 @@ public interface MessageEncoderDecoder<T> {
      */
     byte[] encode(T message);
 
+    /**
+     * encodes the given message to buffers that should be written in order.
+     * the default implementation wraps {@link #encode(Object)}, implementations
+     * may return views of bytes shared between messages to avoid copying them.
+     *
+     * @param message the message to encode
+     * @return the encoded buffers, each one owned by the caller
+     */
+    default ByteBuffer[] encodeToBuffers(T message) {
+        return new ByteBuffer[]{ByteBuffer.wrap(encode(message))};
+    }
+
 }
@@ -1,29 +1,46 @@
 package bgu.spl.net.impl.data;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 
+import bgu.spl.net.srv.ConnectionMap;
+
 public class Database {
+	// the backend given before the database was created, the SQL server if none was
+	private static volatile DatabaseBackend configuredBackend;
+	private static volatile boolean created = false;
+
 	private final ConcurrentHashMap<String, User> userMap;
-	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
-	private final String sqlHost;
-	private final int sqlPort;
+	private final ConnectionMap<User> connectionsIdMap;
+	// where the users, logins and file uploads are kept
+	private final DatabaseBackend backend;
+	// false if the users could not be loaded on startup, then users missing in memory are looked up in the backend
+	private final boolean usersLoaded;
+	// logins, logouts and file uploads, written in the background
+	private final WriteBehindQueue writes;
 
 	private Database() {
+		created = true;
 		userMap = new ConcurrentHashMap<>();
-		connectionsIdMap = new ConcurrentHashMap<>();
-		// SQL server connection details
-		this.sqlHost = "127.0.0.1";
-		this.sqlPort = 7778;
+		connectionsIdMap = new ConnectionMap<>();
+		// SQL server connection details, unless another backend was given
+		this.backend = configuredBackend != null ? configuredBackend : new SqlBackend("127.0.0.1", 7778);
 		//ensuring that any users that were logged in are logged out on server startup
 		try {
-			executeSQL("UPDATE login_history SET logout_time = datetime('now') WHERE logout_time IS NULL");
+			backend.closeOpenSessions();
 		} catch (Exception e) {
-			System.err.println("Error: SQL Server is not running!");
+			System.err.println("Error: could not close the open sessions: " + e.getMessage());
 		}
+		usersLoaded = loadUsers();
+		writes = new WriteBehindQueue(backend);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			writes.close();
+			backend.close();
+		}));
 	}
 
 	public static Database getInstance() {
@@ -31,40 +48,20 @@ public class Database {
 	}
 
 	/**
-	 * Execute SQL query and return result
-	 * @param sql SQL query string
-	 * @return Result string from SQL server
+	 * Sets where the database keeps its data, instead of the SQL server. must be called before the database is used
 	 */
-	private String executeSQL(String sql) {
-		try (Socket socket = new Socket(sqlHost, sqlPort);
-			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-			
-			// Send SQL with null terminator
-			out.print(sql + '\0');
-			out.flush();
-			
-			// Read response until null terminator
-			StringBuilder response = new StringBuilder();
-			int ch;
-			while ((ch = in.read()) != -1 && ch != '\0') {
-				response.append((char) ch);
-			}
-			
-			return response.toString();
-			
-		} catch (Exception e) {
-			System.err.println("SQL Error: " + e.getMessage());
-			return "ERROR:" + e.getMessage();
+	public static void setBackend(DatabaseBackend backend) {
+		if (created) {
+			throw new IllegalStateException("the database is already in use");
 		}
+		configuredBackend = backend;
 	}
 
 	/**
-	 * Escape SQL special characters to prevent SQL injection
+	 * @return where the database keeps its data
 	 */
-	private String escapeSql(String str) {
-		if (str == null) return "";
-		return str.replace("'", "''");
+	public DatabaseBackend getBackend() {
+		return backend;
 	}
 
 	public void addUser(User user) {
@@ -73,107 +70,94 @@ public class Database {
 	}
 
 	public LoginStatus login(int connectionId, String username, String password) {
+		return loginAsync(connectionId, username, password).join();
+	}
+
+	/**
+	 * Logs the client in without waiting for the SQL server, answered right away when the user is in memory
+	 * @return the status of the login, completed on another thread if the user had to be looked up in SQL
+	 */
+	public CompletableFuture<LoginStatus> loginAsync(int connectionId, String username, String password) {
 		System.out.println("[Database] Login attempt - ConnectionID: " + connectionId + ", Username: " + username);
 		
 		if (connectionsIdMap.containsKey(connectionId)) {
 			System.out.println("[Database] Login failed: CLIENT_ALREADY_CONNECTED");
-			return LoginStatus.CLIENT_ALREADY_CONNECTED;
+			return CompletableFuture.completedFuture(LoginStatus.CLIENT_ALREADY_CONNECTED);
 		}
 		
-		// check if user exists in SQL database
-		String checkUserSQL = String.format(
-			"SELECT username, password FROM users WHERE username='%s'",
-			escapeSql(username)
-		);
-		String result = executeSQL(checkUserSQL);
-		
-		if (result.startsWith("ERROR")) {
-			System.err.println("[Database] CRITICAL: SQL error checking user: " + result);
+		// the users are all in memory, the SQL server is only asked if they could not be loaded on startup
+		User user = userMap.get(username);
+		if (user != null || usersLoaded) {
+			return CompletableFuture.completedFuture(login(connectionId, username, password, user));
 		}
-		
-		String[] parts = result.split("\\|");
-		boolean isInSql = parts.length > 1;
-		
-		if (!isInSql) {
-			// New user - register in SQL
-			System.out.println("[Database] New user - registering in SQL: " + username);
-			String insertSQL = String.format(
-				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
-				escapeSql(username), escapeSql(password)
-			);
-			String insertResult = executeSQL(insertSQL);
-			
-			if (insertResult.startsWith("ERROR")) {
-				System.err.println("[Database] CRITICAL: Failed to register user in SQL: " + insertResult);
-			}
-			
-			System.out.println("[Database] New user persisted to SQL database: " + username);
-			// adding to memory map
-			User user = new User(connectionId, username, password);
-			user.login();
-			addUser(user);
-			// Log login
-			logLogin(username);
-			System.out.println("[Database] Login successful: ADDED_NEW_USER");
-			return LoginStatus.ADDED_NEW_USER;
-		} else {
-			// User exists in SQL - verify password
-			String[] userData = parts[1].split(",");
-			String storedPassword = userData[1];
-			
-			if (!storedPassword.equals(password)) {
-				System.out.println("[Database] Login failed: WRONG_PASSWORD");
-				return LoginStatus.WRONG_PASSWORD;
-			}
-			
-			// Check if user is already logged in via SQL
-			String checkLoginSQL = String.format(
-				"SELECT username FROM login_history WHERE username='%s' AND logout_time IS NULL",
-				escapeSql(username)
-			);
-			String loginCheckResult = executeSQL(checkLoginSQL);
-			String[] loginParts = loginCheckResult.split("\\|");
-			
-			if (loginParts.length > 1) {
-				System.out.println("[Database] Login failed: ALREADY_LOGGED_IN");
-				return LoginStatus.ALREADY_LOGGED_IN;
+		// continuing off the thread of the backend, logging in may wait for the write-behind queue
+		return backend.findPassword(username).handleAsync((found, error) -> {
+			if (error != null) {
+				Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+				System.err.println("[Database] Could not look the user up: " + cause.getMessage());
+				found = null;
 			}
-			
-			// Login successful - update in-memory map
-			User user = userMap.get(username);
-			if (user == null) {
-				// User exists in SQL but not in memory (server restart)
-				user = new User(connectionId, username, password);
-				userMap.put(username, user);
-				System.out.println("[Database] Loaded user from SQL into memory");
+			return login(connectionId, username, password, loadUser(username, found));
+		});
+	}
+
+	// the user is null if it is not registered yet
+	private LoginStatus login(int connectionId, String username, String password, User user) {
+		if (user == null) {
+			// New user - registering in memory first, only one of the clients racing for the name gets it
+			if (addNewUserCase(connectionId, username, password)) {
+				writes.register(username, password);
+				logLogin(username);
+				System.out.println("[Database] Login successful: ADDED_NEW_USER");
+				return LoginStatus.ADDED_NEW_USER;
 			}
-			user.login();
-			user.setConnectionId(connectionId);
-			connectionsIdMap.put(connectionId, user);
-			
-			// Log login
+			// another client registered the name first, it is an existing user now
+		}
+		
+		LoginStatus status = userExistsCase(connectionId, username, password);
+		if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
 			logLogin(username);
-			System.out.println("[Database] Login successful: LOGGED_IN_SUCCESSFULLY");
-			return LoginStatus.LOGGED_IN_SUCCESSFULLY;
 		}
+		System.out.println("[Database] Login " + (status == LoginStatus.LOGGED_IN_SUCCESSFULLY ? "successful: " : "failed: ") + status);
+		return status;
+	}
+
+	// loads every user from the backend into memory
+	private boolean loadUsers() {
+		Map<String, String> users = backend.loadUsers();
+		if (users == null) {
+			System.err.println("[Database] Could not load the users, they will be looked up on login");
+			return false;
+		}
+		for (Map.Entry<String, String> user : users.entrySet()) {
+			userMap.putIfAbsent(user.getKey(), new User(-1, user.getKey(), user.getValue()));
+		}
+		System.out.println("[Database] Loaded " + userMap.size() + " users into memory");
+		return true;
 	}
 
+	// the user looked up in the backend, when the users could not be loaded on startup
+	private User loadUser(String username, String password) {
+		if (password == null) {
+			return null;
+		}
+		User user = new User(-1, username, password);
+		User current = userMap.putIfAbsent(username, user);
+		return current != null ? current : user;
+	}
 
 	private void logLogin(String username) {
-		String sql = String.format(
-			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
-			escapeSql(username)
-		);
-		executeSQL(sql);
+		writes.login(username);
 	}
 
+	// checks the password and logs the user in, a user is logged in by one client at a time
 	private LoginStatus userExistsCase(int connectionId, String username, String password) {
 		User user = userMap.get(username);
 		synchronized (user) {
-			if (user.isLoggedIn()) {
-				return LoginStatus.ALREADY_LOGGED_IN;
-			} else if (!user.password.equals(password)) {
+			if (!user.password.equals(password)) {
 				return LoginStatus.WRONG_PASSWORD;
+			} else if (user.isLoggedIn()) {
+				return LoginStatus.ALREADY_LOGGED_IN;
 			} else {
 				user.login();
 				user.setConnectionId(connectionId);
@@ -183,134 +167,64 @@ public class Database {
 		}
 	}
 
+	// adds the user logged in already, unless the name was taken meanwhile
 	private boolean addNewUserCase(int connectionId, String username, String password) {
-		if (!userMap.containsKey(username)) {
-			synchronized (userMap) {
-				if (!userMap.containsKey(username)) {
-					User user = new User(connectionId, username, password);
-					user.login();
-					addUser(user);
-					return true;
-				}
-			}
+		User user = new User(connectionId, username, password);
+		user.login();
+		if (userMap.putIfAbsent(username, user) != null) {
+			return false;
 		}
-		return false;
+		connectionsIdMap.put(connectionId, user);
+		return true;
 	}
 
 	public void logout(int connectionsId) {
-		User user = connectionsIdMap.get(connectionsId);
+		// only the first logout of a connection finds its user
+		User user = connectionsIdMap.remove(connectionsId);
 		if (user != null) {
+			synchronized (user) {
+				if (user.getConnectionId() == connectionsId) {
+					user.logout();
+				}
+			}
 			// Log logout in SQL
-			String sql = String.format(
-				"UPDATE login_history SET logout_time=datetime('now') " +
-				"WHERE username='%s' AND logout_time IS NULL " +
-				"ORDER BY login_time DESC LIMIT 1",
-				escapeSql(user.name)
-			);
-			executeSQL(sql);
-			
-			user.logout();
-			connectionsIdMap.remove(connectionsId);
+			writes.logout(user.name);
 		}
 	}
 
 	public void trackFileUpload(String username, String filename, String gameChannel) {
-		String sql = String.format(
-			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) " +
-			"VALUES ('%s', '%s', datetime('now'), '%s')",
-			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
-		);
-		executeSQL(sql);
+		writes.fileUpload(username, filename, gameChannel);
 	}
 
 	/**
-	 * Generate and print server report using SQL queries
+	 * Tracks several uploads of the user, queued together so they are written in the same statement
+	 * @param filenames the file names, matching the game channels by index
 	 */
-	public void printReport() {
-		System.out.println(repeat("=", 80));
-		System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
-		System.out.println(repeat("=", 80));
-		
-		// List all users
-		System.out.println("\n1. REGISTERED USERS:");
-		System.out.println(repeat("-", 80));
-		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
-		if (usersResult.startsWith("SUCCESS")) {
-			String[] parts = usersResult.split("\\|");
-			if (parts.length > 1) {
-				for (int i = 1; i < parts.length; i++) {
-					System.out.println("   " + parts[i]);
-				}
-			} else {
-				System.out.println("   No users registered");
-			}
-		}
-		
-		// Login history for each user
-		System.out.println("\n2. LOGIN HISTORY:");
-		System.out.println(repeat("-", 80));
-		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
-		if (loginResult.startsWith("SUCCESS")) {
-			String[] parts = loginResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 3) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      Login:  " + fields[1]);
-						System.out.println("      Logout: " + (fields[2].equals("None") ? "Still logged in" : fields[2]));
-					}
-				}
-			} else {
-				System.out.println("   No login history");
-			}
-		}
-		
-		// File uploads for each user
-		System.out.println("\n3. FILE UPLOADS:");
-		System.out.println(repeat("-", 80));
-		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
-		if (filesResult.startsWith("SUCCESS")) {
-			String[] parts = filesResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 4) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      File: " + fields[1]);
-						System.out.println("      Time: " + fields[2]);
-						System.out.println("      Game: " + fields[3]);
-						System.out.println();
-					}
-				}
-			} else {
-				System.out.println("   No files uploaded");
-			}
+	public void trackFileUploads(String username, List<String> filenames, List<String> gameChannels) {
+		for (int i = 0; i < filenames.size(); i++) {
+			writes.fileUpload(username, filenames.get(i), gameChannels.get(i));
 		}
-		
-	System.out.println(repeat("=", 80));
-}
+	}
 
-private String repeat(String str, int times) {
-	StringBuilder sb = new StringBuilder();
-	for (int i = 0; i < times; i++) {
-		sb.append(str);
+	/**
+	 * waits until the logins, logouts and file uploads made so far are written
+	 */
+	public void flush() {
+		writes.flush();
 	}
-	return sb.toString();
-}
 
-private static class Instance {
-	static Database instance = new Database();
-}
+	/**
+	 * Generate and print server report, a page at a time (see {@link ReportEngine})
+	 */
+	public void printReport() {
+		try {
+			new ReportEngine(this).run(ReportEngine.Cursor.START, System.out::println);
+		} catch (IOException | RuntimeException e) {
+			System.err.println("[Database] Could not print the report: " + e.getMessage());
+		}
+	}
+
+	private static class Instance {
+		static Database instance = new Database();
+	}
 }
@@ -0,0 +1,61 @@
+package bgu.spl.net.impl.data;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where the database keeps the users, their login history and the files they uploaded.
+ * the database keeps the users in memory, the backend is read on startup, for users missing in memory and for
+ * the report, a page at a time (see {@link ReportEngine}). the writes come in batches from a single thread, in
+ * the order they were made (see {@link WriteBehindQueue}).
+ */
+public interface DatabaseBackend extends Closeable {
+
+	/**
+	 * logs out the sessions left open by the last run, it ended without logging them out
+	 */
+	void closeOpenSessions();
+
+	/**
+	 * @return the password of every registered user by username, null if they could not be read
+	 */
+	Map<String, String> loadUsers();
+
+	/**
+	 * @return the password of the user, null if it is not registered. fails if it could not be read
+	 */
+	CompletableFuture<String> findPassword(String username);
+
+	/**
+	 * keeps the writes, in their order
+	 */
+	void write(List<WriteBehindQueue.Write> writes);
+
+	/**
+	 * @return the last ids given so far to users, sessions and file uploads, in this order. ids only grow
+	 */
+	long[] lastIds();
+
+	/**
+	 * @return up to limit users with an id in (afterId, toId], by id: the id, username and registration time
+	 */
+	List<String[]> users(long afterId, long toId, int limit);
+
+	/**
+	 * @return up to limit sessions with an id in (fromId, toId], by username and then newest first, starting
+	 * after the session of afterUsername with afterId: the id, username, login time and logout time (null while
+	 * logged in)
+	 */
+	List<String[]> logins(long fromId, long toId, String afterUsername, long afterId, int limit);
+
+	/**
+	 * @return up to limit file uploads with an id in (fromId, toId], by username and then newest first, starting
+	 * after the upload of afterUsername with afterId: the id, username, filename, upload time and game channel
+	 */
+	List<String[]> uploads(long fromId, long toId, String afterUsername, long afterId, int limit);
+
+	@Override
+	void close();
+}
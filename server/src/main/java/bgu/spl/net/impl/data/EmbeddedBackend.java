@@ -0,0 +1,631 @@
+package bgu.spl.net.impl.data;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
+
+import bgu.spl.net.impl.data.WriteBehindQueue.Write;
+
+/**
+ * A database kept by the server itself, instead of the SQL server.
+ * the users, sessions and file uploads are in memory, indexed by username, each with an id given in the order
+ * they were made, the report reads them by id. every write is appended to a log
+ * file before it is applied, so it survives a restart. once the log is bigger than the snapshot limit (and
+ * than the last snapshot, so a snapshot never writes more than was logged since the last one) a new log is
+ * started and the state is written to a new snapshot by a background thread, without holding up the writes,
+ * then the older files are deleted, so the log never grows with the history. on startup the newest snapshot
+ * is read and the logs from it on are replayed.
+ * a record is: the length of the rest (int), the crc32 of its content (int) and its content, a kind (byte)
+ * followed by strings, each its length (int, -1 for null) and its utf-8 bytes. a record cut short by a
+ * crash ends the log. a session or a file upload in a snapshot also has its id, as a string.
+ */
+public class EmbeddedBackend implements DatabaseBackend {
+
+	public static final long DEFAULT_SNAPSHOT_LOG_BYTES = 16L << 20; //16m
+	private static final String SNAPSHOT = "snapshot-";
+	private static final String LOG = "log-";
+	private static final String SUFFIX = ".dat";
+	// the kinds of records: the writes of the database, closing the sessions left open on startup,
+	// and a whole session, only written in snapshots
+	private static final byte REGISTER = 1, LOGIN = 2, LOGOUT = 3, FILE_UPLOAD = 4, CLOSE_SESSIONS = 5, SESSION = 6;
+
+	private static final class Registered {
+		final long id;
+		final String password;
+		final String time;
+
+		Registered(long id, String password, String time) {
+			this.id = id;
+			this.password = password;
+			this.time = time;
+		}
+	}
+
+	private static final class Session {
+		final long id;
+		final String loginTime;
+		volatile String logoutTime; // null while logged in, read by the snapshot thread without the lock
+
+		Session(long id, String loginTime, String logoutTime) {
+			this.id = id;
+			this.loginTime = loginTime;
+			this.logoutTime = logoutTime;
+		}
+	}
+
+	private static final class Upload {
+		final long id;
+		final String filename;
+		final String time;
+		final String gameChannel;
+
+		Upload(long id, String filename, String time, String gameChannel) {
+			this.id = id;
+			this.filename = filename;
+			this.time = time;
+			this.gameChannel = gameChannel;
+		}
+	}
+
+	private final Path directory;
+	private final ReentrantLock lock = new ReentrantLock(); // guards the state and the log
+	private final LinkedHashMap<String, Registered> users = new LinkedHashMap<>(); // in the order they registered
+	private final List<String> usernames = new ArrayList<>(); // by id, the first user has id 1
+	private final TreeMap<String, List<Session>> sessions = new TreeMap<>(); // by username, oldest first
+	private final HashMap<String, List<Session>> openSessions = new HashMap<>(); // the sessions not logged out
+	private final TreeMap<String, List<Upload>> uploads = new TreeMap<>(); // by username, oldest first
+	private final ExecutorService snapshots;
+	private final long snapshotLogBytes;
+	private long lastSessionId;
+	private long lastUploadId;
+	private long generation; // the number of the current log, and of the snapshot it continues
+	private FileChannel log;
+	private long logSize;
+	private long snapshotSize; // the size of the last snapshot
+	private boolean snapshotting = false; // while a snapshot is asked for or written
+	private boolean closed = false;
+
+	/**
+	 * opens the database in the directory, reading what is already there
+	 * @param snapshotLogBytes how big the log grows before it is compacted into a snapshot
+	 */
+	public EmbeddedBackend(Path directory, long snapshotLogBytes) throws IOException {
+		if (snapshotLogBytes <= 0) {
+			throw new IllegalArgumentException("the snapshot limit must be positive");
+		}
+		this.directory = directory;
+		this.snapshotLogBytes = snapshotLogBytes;
+		Files.createDirectories(directory);
+		recover();
+		snapshots = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "database-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public EmbeddedBackend(Path directory) throws IOException {
+		this(directory, DEFAULT_SNAPSHOT_LOG_BYTES);
+	}
+
+	@Override
+	public void closeOpenSessions() {
+		lock.lock();
+		try {
+			if (!openSessions.isEmpty()) {
+				append(List.of(record(CLOSE_SESSIONS, WriteBehindQueue.SQL_TIME.format(Instant.now()))));
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Map<String, String> loadUsers() {
+		lock.lock();
+		try {
+			Map<String, String> passwords = new HashMap<>();
+			for (Map.Entry<String, Registered> user : users.entrySet()) {
+				passwords.put(user.getKey(), user.getValue().password);
+			}
+			return passwords;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public CompletableFuture<String> findPassword(String username) {
+		lock.lock();
+		try {
+			Registered user = users.get(username);
+			return CompletableFuture.completedFuture(user != null ? user.password : null);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void write(List<Write> writes) {
+		List<byte[]> records = new ArrayList<>(writes.size());
+		for (Write write : writes) {
+			switch (write.kind) {
+				case REGISTER:
+					records.add(record(REGISTER, write.username, write.password, write.time));
+					break;
+				case LOGIN:
+					records.add(record(LOGIN, write.username, write.time));
+					break;
+				case LOGOUT:
+					records.add(record(LOGOUT, write.username, write.time));
+					break;
+				case FILE_UPLOAD:
+					records.add(record(FILE_UPLOAD, write.username, write.filename, write.time, write.gameChannel));
+					break;
+				default:
+					break;
+			}
+		}
+		lock.lock();
+		try {
+			append(records);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public long[] lastIds() {
+		lock.lock();
+		try {
+			return new long[]{usernames.size(), lastSessionId, lastUploadId};
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<String[]> users(long afterId, long toId, int limit) {
+		lock.lock();
+		try {
+			List<String[]> rows = new ArrayList<>();
+			long last = Math.min(toId, usernames.size());
+			for (long id = Math.max(afterId, 0) + 1; id <= last && rows.size() < limit; id++) {
+				String username = usernames.get((int) id - 1);
+				rows.add(new String[]{Long.toString(id), username, users.get(username).time});
+			}
+			return rows;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<String[]> logins(long fromId, long toId, String afterUsername, long afterId, int limit) {
+		lock.lock();
+		try {
+			return page(sessions, session -> session.id, fromId, toId, afterUsername, afterId, limit,
+				(username, session) -> new String[]{Long.toString(session.id), username, session.loginTime,
+					session.logoutTime});
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<String[]> uploads(long fromId, long toId, String afterUsername, long afterId, int limit) {
+		lock.lock();
+		try {
+			return page(uploads, upload -> upload.id, fromId, toId, afterUsername, afterId, limit,
+				(username, upload) -> new String[]{Long.toString(upload.id), username, upload.filename, upload.time,
+					upload.gameChannel});
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// a page of rows by username and then newest first, the rows of each user are kept oldest first
+	private static <T> List<String[]> page(TreeMap<String, List<T>> byUser, ToLongFunction<T> idOf, long fromId,
+			long toId, String afterUsername, long afterId, int limit, BiFunction<String, T, String[]> row) {
+		List<String[]> rows = new ArrayList<>();
+		for (Map.Entry<String, List<T>> user : byUser.tailMap(afterUsername, true).entrySet()) {
+			List<T> list = user.getValue();
+			long upTo = user.getKey().equals(afterUsername) ? Math.min(toId, afterId - 1) : toId;
+			for (int i = lastAtMost(list, idOf, upTo); i >= 0 && rows.size() < limit; i--) {
+				if (idOf.applyAsLong(list.get(i)) <= fromId) {
+					break;
+				}
+				rows.add(row.apply(user.getKey(), list.get(i)));
+			}
+			if (rows.size() >= limit) {
+				break;
+			}
+		}
+		return rows;
+	}
+
+	// the index of the last row with an id up to the given one, -1 if there is none. the ids grow along the list
+	private static <T> int lastAtMost(List<T> list, ToLongFunction<T> idOf, long id) {
+		int low = 0, high = list.size() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (idOf.applyAsLong(list.get(middle)) <= id) {
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return high;
+	}
+
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			closed = true; // no snapshot is asked for anymore
+		} finally {
+			lock.unlock();
+		}
+		snapshots.shutdownNow();
+		lock.lock();
+		try {
+			log.force(false);
+			log.close();
+		} catch (IOException e) {
+			System.err.println("[Database] Could not close the log: " + e.getMessage());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// writes the records to the log and then applies them, called with the lock held
+	// if they cannot all be written, the log is cut back to where they started and none of them is applied
+	private void append(List<byte[]> records) {
+		int size = 0;
+		for (byte[] record : records) {
+			size += record.length;
+		}
+		ByteBuffer out = ByteBuffer.allocate(size);
+		for (byte[] record : records) {
+			out.put(record);
+		}
+		out.flip();
+		try {
+			while (out.hasRemaining()) {
+				log.write(out);
+			}
+			log.force(false);
+		} catch (IOException e) {
+			// a part written is dropped, so that the next records follow the last whole one
+			try {
+				log.truncate(logSize);
+				log.position(logSize);
+			} catch (IOException truncating) {
+				e.addSuppressed(truncating);
+			}
+			throw new UncheckedIOException("could not write to the log", e);
+		}
+		logSize += size;
+		for (byte[] record : records) {
+			apply(ByteBuffer.wrap(record, 2 * Integer.BYTES, record.length - 2 * Integer.BYTES));
+		}
+		if (!snapshotting && !closed && logSize >= Math.max(snapshotLogBytes, snapshotSize)) {
+			snapshotting = true;
+			snapshots.execute(this::snapshot);
+		}
+	}
+
+	// applies the content of a record to the state
+	private void apply(ByteBuffer content) {
+		byte kind = content.get();
+		String username = kind == CLOSE_SESSIONS ? null : readString(content);
+		switch (kind) {
+			case REGISTER:
+				if (!users.containsKey(username)) {
+					users.put(username, new Registered(usernames.size() + 1, readString(content), readString(content)));
+					usernames.add(username);
+				}
+				break;
+			case LOGIN:
+			case SESSION:
+				String loginTime = readString(content);
+				String logoutTime = kind == SESSION ? readString(content) : null;
+				Session session = new Session(readId(content, lastSessionId), loginTime, logoutTime);
+				lastSessionId = Math.max(lastSessionId, session.id);
+				sessions.computeIfAbsent(username, u -> new ArrayList<>()).add(session);
+				if (session.logoutTime == null) {
+					openSessions.computeIfAbsent(username, u -> new ArrayList<>()).add(session);
+				}
+				break;
+			case LOGOUT:
+				logout(openSessions.remove(username), readString(content));
+				break;
+			case FILE_UPLOAD:
+				String filename = readString(content);
+				String uploadTime = readString(content);
+				String gameChannel = readString(content);
+				Upload upload = new Upload(readId(content, lastUploadId), filename, uploadTime, gameChannel);
+				lastUploadId = Math.max(lastUploadId, upload.id);
+				uploads.computeIfAbsent(username, u -> new ArrayList<>()).add(upload);
+				break;
+			case CLOSE_SESSIONS:
+				String time = readString(content);
+				for (List<Session> open : openSessions.values()) {
+					logout(open, time);
+				}
+				openSessions.clear();
+				break;
+			default:
+				throw new IllegalStateException("unknown record kind " + kind);
+		}
+	}
+
+	// the id kept in a snapshot record, the one after the last otherwise
+	private static long readId(ByteBuffer content, long lastId) {
+		return content.hasRemaining() ? Long.parseLong(readString(content)) : lastId + 1;
+	}
+
+	private static void logout(List<Session> open, String time) {
+		if (open != null) {
+			for (Session session : open) {
+				session.logoutTime = time;
+			}
+		}
+	}
+
+	// starts a new log and writes the state up to it to a new snapshot, on the snapshot thread.
+	// only starting the log and copying the lists of rows is done with the lock held, the rows themselves do
+	// not change (but the logout time of a session, which a record of the new log sets again anyway)
+	private void snapshot() {
+		long next;
+		List<Map.Entry<String, Registered>> usersUpTo;
+		List<Map.Entry<String, List<Session>>> sessionsUpTo = new ArrayList<>();
+		List<Map.Entry<String, List<Upload>>> uploadsUpTo = new ArrayList<>();
+		lock.lock();
+		try {
+			// until the snapshot is in place, the recovery replays the old log and then the new one
+			next = generation + 1;
+			FileChannel nextLog = openLog(next);
+			log.close();
+			log = nextLog;
+			generation = next;
+			logSize = 0;
+			usersUpTo = new ArrayList<>(users.entrySet());
+			for (Map.Entry<String, List<Session>> user : sessions.entrySet()) {
+				sessionsUpTo.add(Map.entry(user.getKey(), new ArrayList<>(user.getValue())));
+			}
+			for (Map.Entry<String, List<Upload>> user : uploads.entrySet()) {
+				uploadsUpTo.add(Map.entry(user.getKey(), new ArrayList<>(user.getValue())));
+			}
+		} catch (IOException e) {
+			snapshotting = false;
+			System.err.println("[Database] Could not start a new log: " + e.getMessage());
+			return;
+		} finally {
+			lock.unlock();
+		}
+
+		long size = 0;
+		Path temporary = directory.resolve(SNAPSHOT + next + ".tmp");
+		try {
+			try (FileChannel out = FileChannel.open(temporary, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteArrayOutputStream content = new ByteArrayOutputStream(1 << 16);
+				for (Map.Entry<String, Registered> user : usersUpTo) {
+					content.write(record(REGISTER, user.getKey(), user.getValue().password, user.getValue().time));
+					writeFull(out, content, 1 << 16);
+				}
+				for (Map.Entry<String, List<Session>> user : sessionsUpTo) {
+					for (Session session : user.getValue()) {
+						content.write(record(SESSION, user.getKey(), session.loginTime, session.logoutTime,
+							Long.toString(session.id)));
+						writeFull(out, content, 1 << 16);
+					}
+				}
+				for (Map.Entry<String, List<Upload>> user : uploadsUpTo) {
+					for (Upload upload : user.getValue()) {
+						content.write(record(FILE_UPLOAD, user.getKey(), upload.filename, upload.time,
+							upload.gameChannel, Long.toString(upload.id)));
+						writeFull(out, content, 1 << 16);
+					}
+				}
+				writeFull(out, content, 0);
+				out.force(true);
+				size = out.size();
+			}
+			Files.move(temporary, file(SNAPSHOT, next), StandardCopyOption.ATOMIC_MOVE);
+			deleteBefore(next);
+		} catch (IOException e) {
+			System.err.println("[Database] Could not write a snapshot: " + e.getMessage());
+		} finally {
+			lock.lock();
+			try {
+				snapshotting = false;
+				if (size > 0) {
+					snapshotSize = size;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	// writes what was collected once there is enough of it
+	private static void writeFull(FileChannel out, ByteArrayOutputStream content, int threshold) throws IOException {
+		if (content.size() < threshold && threshold > 0) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(content.toByteArray());
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		content.reset();
+	}
+
+	// reads the newest snapshot and replays the logs after it
+	private void recover() throws IOException {
+		long snapshot = -1;
+		List<Long> logs = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path path : files) {
+				String name = path.getFileName().toString();
+				try {
+					if (name.startsWith(SNAPSHOT)) {
+						snapshot = Math.max(snapshot, generation(name, SNAPSHOT));
+					} else if (name.startsWith(LOG)) {
+						logs.add(generation(name, LOG));
+					}
+				} catch (NumberFormatException e) {
+					// not a file of the database
+				}
+			}
+		}
+		generation = Math.max(snapshot, 0);
+		if (snapshot >= 0) {
+			snapshotSize = Files.size(file(SNAPSHOT, snapshot));
+			if (read(file(SNAPSHOT, snapshot)) < snapshotSize) {
+				throw new IOException("the snapshot " + file(SNAPSHOT, snapshot) + " is damaged");
+			}
+		}
+		logs.sort(null);
+		long end = 0;
+		for (long number : logs) {
+			if (number >= generation) {
+				end = read(file(LOG, number));
+				generation = number;
+			}
+		}
+		log = openLog(generation);
+		if (log.size() > end) {
+			System.out.println("[Database] Dropping " + (log.size() - end) + " bytes cut short at the end of the log");
+			log.truncate(end);
+		}
+		log.position(end);
+		logSize = end;
+		System.out.println("[Database] Read " + users.size() + " users from " + directory);
+	}
+
+	// applies the records of the file, up to the first one cut short or damaged
+	// returns the position after the last record applied
+	private long read(Path path) throws IOException {
+		long position = 0;
+		CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					return position;
+				}
+				if (length < Integer.BYTES + 1) {
+					return position;
+				}
+				byte[] record = new byte[length];
+				try {
+					in.readFully(record);
+				} catch (EOFException e) {
+					return position;
+				}
+				ByteBuffer content = ByteBuffer.wrap(record, Integer.BYTES, length - Integer.BYTES);
+				crc.reset();
+				crc.update(content.duplicate());
+				if ((int) crc.getValue() != ByteBuffer.wrap(record).getInt()) {
+					return position;
+				}
+				apply(content);
+				position += Integer.BYTES + length;
+			}
+		}
+	}
+
+	// a record of the kind with the strings
+	private static byte[] record(byte kind, String... fields) {
+		byte[][] encoded = new byte[fields.length][];
+		int size = 1;
+		for (int i = 0; i < fields.length; i++) {
+			encoded[i] = fields[i] == null ? null : fields[i].getBytes(StandardCharsets.UTF_8);
+			size += Integer.BYTES + (encoded[i] == null ? 0 : encoded[i].length);
+		}
+		ByteBuffer record = ByteBuffer.allocate(2 * Integer.BYTES + size);
+		record.putInt(Integer.BYTES + size).putInt(0).put(kind);
+		for (byte[] field : encoded) {
+			record.putInt(field == null ? -1 : field.length);
+			if (field != null) {
+				record.put(field);
+			}
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 2 * Integer.BYTES, size);
+		record.putInt(Integer.BYTES, (int) crc.getValue());
+		return record.array();
+	}
+
+	private static String readString(ByteBuffer content) {
+		int length = content.getInt();
+		if (length < 0) {
+			return null;
+		}
+		String value = new String(content.array(), content.arrayOffset() + content.position(), length,
+			StandardCharsets.UTF_8);
+		content.position(content.position() + length);
+		return value;
+	}
+
+	private FileChannel openLog(long number) throws IOException {
+		return FileChannel.open(file(LOG, number), StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+	}
+
+	private Path file(String prefix, long number) {
+		return directory.resolve(String.format("%s%020d%s", prefix, number, SUFFIX));
+	}
+
+	private static long generation(String name, String prefix) {
+		return Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+	}
+
+	// deleting the snapshots and logs the new snapshot replaces
+	private void deleteBefore(long number) {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path path : files) {
+				String name = path.getFileName().toString();
+				try {
+					if ((name.startsWith(SNAPSHOT) && generation(name, SNAPSHOT) < number)
+						|| (name.startsWith(LOG) && generation(name, LOG) < number)) {
+						Files.deleteIfExists(path);
+					}
+				} catch (NumberFormatException e) {
+					// not a file of the database
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("[Database] Could not delete the old files: " + e.getMessage());
+		}
+	}
+}
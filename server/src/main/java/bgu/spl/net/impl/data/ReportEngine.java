@@ -0,0 +1,353 @@
+package bgu.spl.net.impl.data;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server report, read from the backend a page at a time and written to a sink line by line, so it needs the
+ * same memory however big the tables are. the users are listed by id, the sessions and the file uploads by
+ * username and then newest first, every user followed by a summary of its rows.
+ * a report has the rows added after a cursor, up to the last ones when it started, and returns the cursor
+ * after them: a report from that cursor has only the rows added meanwhile. a session is reported with the
+ * report of its login, a later logout is not reported again.
+ */
+public class ReportEngine {
+
+	public static final int DEFAULT_PAGE_SIZE = 500;
+	private static final String LINE = "=".repeat(80);
+	private static final String SEPARATOR = "-".repeat(80);
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	/**
+	 * Where the lines of the reports go
+	 */
+	public interface Sink extends Closeable {
+
+		void write(String line) throws IOException;
+
+		/**
+		 * called at the end of every report
+		 */
+		default void flush() throws IOException {
+		}
+
+		@Override
+		default void close() throws IOException {
+		}
+	}
+
+	/**
+	 * Appends the reports to a file
+	 */
+	public static class FileSink implements Sink {
+		private final BufferedWriter out;
+
+		public FileSink(Path file) throws IOException {
+			out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+		}
+
+		@Override
+		public void write(String line) throws IOException {
+			out.write(line);
+			out.newLine();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * The last ids of the users, sessions and file uploads a report covered
+	 */
+	public static final class Cursor {
+		public static final Cursor START = new Cursor(0, 0, 0);
+
+		public final long users;
+		public final long sessions;
+		public final long uploads;
+
+		public Cursor(long users, long sessions, long uploads) {
+			this.users = users;
+			this.sessions = sessions;
+			this.uploads = uploads;
+		}
+
+		/**
+		 * @return the cursor kept in the file, the start if there is no file yet
+		 */
+		public static Cursor load(Path file) throws IOException {
+			Properties properties = new Properties();
+			try (InputStream in = Files.newInputStream(file)) {
+				properties.load(in);
+			} catch (NoSuchFileException e) {
+				return START;
+			}
+			try {
+				return new Cursor(Long.parseLong(properties.getProperty("users", "0")),
+					Long.parseLong(properties.getProperty("sessions", "0")),
+					Long.parseLong(properties.getProperty("uploads", "0")));
+			} catch (NumberFormatException e) {
+				throw new IOException("the cursor in " + file + " is damaged", e);
+			}
+		}
+
+		/**
+		 * keeps the cursor in the file, replacing it at once
+		 */
+		public void save(Path file) throws IOException {
+			Properties properties = new Properties();
+			properties.setProperty("users", Long.toString(users));
+			properties.setProperty("sessions", Long.toString(sessions));
+			properties.setProperty("uploads", Long.toString(uploads));
+			Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+			try (OutputStream out = Files.newOutputStream(temporary)) {
+				properties.store(out, "the last rows reported");
+			}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+
+		@Override
+		public String toString() {
+			return "users #" + users + ", sessions #" + sessions + ", uploads #" + uploads;
+		}
+	}
+
+	// a page of rows of a user table: the id and the username first
+	private interface Page {
+		List<String[]> read(String afterUsername, long afterId, int limit);
+	}
+
+	// writes the rows of a user and sums them up
+	private abstract static class UserRows {
+		abstract void write(Sink sink, String[] row) throws IOException;
+
+		// the summary of the rows written since the last one
+		abstract String summary();
+	}
+
+	private final Database database;
+	private final int pageSize;
+
+	public ReportEngine(Database database, int pageSize) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("the page size must be positive");
+		}
+		this.database = database;
+		this.pageSize = pageSize;
+	}
+
+	public ReportEngine(Database database) {
+		this(database, DEFAULT_PAGE_SIZE);
+	}
+
+	/**
+	 * writes a report of the rows added after the cursor, once the writes made so far are in the backend
+	 * @return the cursor after the rows of the report
+	 */
+	public Cursor run(Cursor from, Sink sink) throws IOException {
+		database.flush();
+		DatabaseBackend backend = database.getBackend();
+		long[] last = backend.lastIds();
+		Cursor to = new Cursor(Math.max(from.users, last[0]), Math.max(from.sessions, last[1]),
+			Math.max(from.uploads, last[2]));
+
+		sink.write(LINE);
+		sink.write("SERVER REPORT - Generated at: " + LocalDateTime.now());
+		if (from.users > 0 || from.sessions > 0 || from.uploads > 0) {
+			sink.write("Added after: " + from);
+		}
+		sink.write(LINE);
+
+		sink.write("");
+		sink.write("1. REGISTERED USERS:");
+		sink.write(SEPARATOR);
+		long users = 0;
+		long afterId = from.users;
+		while (true) {
+			List<String[]> rows = backend.users(afterId, to.users, pageSize);
+			for (String[] user : rows) {
+				sink.write("   " + user[1] + "," + user[2]);
+			}
+			users += rows.size();
+			if (rows.size() < pageSize) {
+				break;
+			}
+			afterId = Long.parseLong(rows.get(rows.size() - 1)[0]);
+		}
+		sink.write(users == 0 ? "   No users registered" : "   Users: " + users);
+
+		sink.write("");
+		sink.write("2. LOGIN HISTORY:");
+		sink.write(SEPARATOR);
+		long sessions = byUser(sink, (afterUsername, afterSession, limit) ->
+			backend.logins(from.sessions, to.sessions, afterUsername, afterSession, limit), new Sessions());
+		if (sessions == 0) {
+			sink.write("   No login history");
+		}
+
+		sink.write("");
+		sink.write("3. FILE UPLOADS:");
+		sink.write(SEPARATOR);
+		long uploads = byUser(sink, (afterUsername, afterUpload, limit) ->
+			backend.uploads(from.uploads, to.uploads, afterUsername, afterUpload, limit), new Uploads());
+		if (uploads == 0) {
+			sink.write("   No files uploaded");
+		}
+
+		sink.write(LINE);
+		sink.flush();
+		return to;
+	}
+
+	/**
+	 * runs a report every period, each from where the last one ended, unless nothing was added meanwhile.
+	 * the cursor is kept in the file, so the reports go on from it after a restart
+	 * @return the thread running the reports, shut it down to stop them
+	 */
+	public ScheduledExecutorService schedule(Sink sink, Path cursorFile, long periodMillis) {
+		if (periodMillis <= 0) {
+			throw new IllegalArgumentException("the report period must be positive");
+		}
+		ScheduledExecutorService reports = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "database-report");
+			thread.setDaemon(true);
+			return thread;
+		});
+		reports.scheduleWithFixedDelay(() -> {
+			try {
+				Cursor from = Cursor.load(cursorFile);
+				if (hasRowsAfter(from)) {
+					run(from, sink).save(cursorFile);
+				}
+			} catch (IOException | RuntimeException e) {
+				System.err.println("[Database] Could not write the report: " + e.getMessage());
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+		return reports;
+	}
+
+	private boolean hasRowsAfter(Cursor cursor) {
+		database.flush();
+		long[] last = database.getBackend().lastIds();
+		return last[0] > cursor.users || last[1] > cursor.sessions || last[2] > cursor.uploads;
+	}
+
+	// the rows of a table by username, a page at a time, the summary of every user after its rows
+	// returns the number of rows
+	private long byUser(Sink sink, Page page, UserRows userRows) throws IOException {
+		long count = 0;
+		String currentUser = null;
+		String afterUsername = "";
+		long afterId = Long.MAX_VALUE;
+		while (true) {
+			List<String[]> rows = page.read(afterUsername, afterId, pageSize);
+			for (String[] row : rows) {
+				if (!row[1].equals(currentUser)) {
+					if (currentUser != null) {
+						sink.write(userRows.summary());
+					}
+					currentUser = row[1];
+					sink.write("");
+					sink.write("   User: " + currentUser);
+				}
+				userRows.write(sink, row);
+			}
+			count += rows.size();
+			if (rows.size() < pageSize) {
+				break;
+			}
+			String[] last = rows.get(rows.size() - 1);
+			afterUsername = last[1];
+			afterId = Long.parseLong(last[0]);
+		}
+		if (currentUser != null) {
+			sink.write(userRows.summary());
+		}
+		return count;
+	}
+
+	// id, username, login time, logout time
+	private static class Sessions extends UserRows {
+		private long sessions;
+		private long open;
+		private long seconds;
+
+		@Override
+		void write(Sink sink, String[] row) throws IOException {
+			sink.write("      Login:  " + row[2]);
+			sink.write("      Logout: " + (row[3] == null ? "Still logged in" : row[3]));
+			sessions++;
+			if (row[3] == null) {
+				open++;
+				return;
+			}
+			try {
+				seconds += Duration.between(LocalDateTime.parse(row[2], TIME), LocalDateTime.parse(row[3], TIME))
+					.getSeconds();
+			} catch (DateTimeParseException e) {
+				// a time the report does not know, left out of the total
+			}
+		}
+
+		@Override
+		String summary() {
+			String summary = String.format("      Sessions: %d, still logged in: %d, time online: %d:%02d:%02d",
+				sessions, open, seconds / 3600, seconds / 60 % 60, seconds % 60);
+			sessions = 0;
+			open = 0;
+			seconds = 0;
+			return summary;
+		}
+	}
+
+	// id, username, filename, upload time, game channel
+	private static class Uploads extends UserRows {
+		private long uploads;
+		private String latest;
+
+		@Override
+		void write(Sink sink, String[] row) throws IOException {
+			sink.write("      File: " + row[2]);
+			sink.write("      Time: " + row[3]);
+			sink.write("      Game: " + row[4]);
+			sink.write("");
+			if (uploads++ == 0) {
+				latest = row[3];
+			}
+		}
+
+		@Override
+		String summary() {
+			String summary = "      Uploads: " + uploads + ", latest: " + latest;
+			uploads = 0;
+			latest = null;
+			return summary;
+		}
+	}
+}
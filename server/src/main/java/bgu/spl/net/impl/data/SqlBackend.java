@@ -0,0 +1,185 @@
+package bgu.spl.net.impl.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import bgu.spl.net.impl.data.WriteBehindQueue.Kind;
+import bgu.spl.net.impl.data.WriteBehindQueue.Write;
+
+/**
+ * The database kept by the SQL server (data/sql_server.py), over a few pipelined connections.
+ * every statement is prepared with ? parameters, the values are never formatted into SQL.
+ * a batch of writes is written with a few statements, each run for many rows in one transaction: new users
+ * first, the other rows refer to them, then logins and logouts in the order they were made, then the file
+ * uploads together.
+ */
+public class SqlBackend implements DatabaseBackend {
+
+	private static final SqlStatement CLOSE_SESSIONS = new SqlStatement(
+		"UPDATE login_history SET logout_time = datetime('now') WHERE logout_time IS NULL");
+	private static final SqlStatement ALL_USERS = new SqlStatement("SELECT username, password FROM users");
+	private static final SqlStatement FIND_USER = new SqlStatement("SELECT password FROM users WHERE username = ?");
+	private static final SqlStatement REGISTER = new SqlStatement(
+		"INSERT INTO users (username, password, registration_date) VALUES (?, ?, ?)");
+	private static final SqlStatement LOGIN = new SqlStatement(
+		"INSERT INTO login_history (username, login_time) VALUES (?, ?)");
+	private static final SqlStatement LOGOUT = new SqlStatement(
+		"UPDATE login_history SET logout_time = ? WHERE logout_time IS NULL AND username = ?");
+	private static final SqlStatement FILE_UPLOAD = new SqlStatement(
+		"INSERT INTO file_tracking (username, filename, upload_time, game_channel) VALUES (?, ?, ?, ?)");
+	private static final SqlStatement LAST_IDS = new SqlStatement(
+		"SELECT (SELECT IFNULL(MAX(rowid), 0) FROM users), (SELECT IFNULL(MAX(id), 0) FROM login_history),"
+		+ " (SELECT IFNULL(MAX(id), 0) FROM file_tracking)");
+	// the pages of the report, the next one starts after the last row of the previous one (keyset pagination).
+	// the sessions and uploads are read along their (username, id DESC) index, +id keeps the id range off it
+	private static final SqlStatement USERS_PAGE = new SqlStatement(
+		"SELECT rowid, username, registration_date FROM users WHERE rowid > ? AND rowid <= ? ORDER BY rowid LIMIT ?");
+	private static final SqlStatement LOGINS_PAGE = new SqlStatement(
+		"SELECT id, username, login_time, logout_time FROM login_history WHERE username >= ?"
+		+ " AND (username > ? OR id < ?) AND +id > ? AND +id <= ? ORDER BY username, id DESC LIMIT ?");
+	private static final SqlStatement UPLOADS_PAGE = new SqlStatement(
+		"SELECT id, username, filename, upload_time, game_channel FROM file_tracking WHERE username >= ?"
+		+ " AND (username > ? OR id < ?) AND +id > ? AND +id <= ? ORDER BY username, id DESC LIMIT ?");
+
+	private final SqlConnectionPool sqlPool;
+
+	public SqlBackend(String host, int port) {
+		this.sqlPool = new SqlConnectionPool(host, port);
+	}
+
+	/**
+	 * @return the connections to the SQL server, with their metrics
+	 */
+	public SqlConnectionPool getSqlPool() {
+		return sqlPool;
+	}
+
+	@Override
+	public void closeOpenSessions() {
+		execute(CLOSE_SESSIONS);
+	}
+
+	// loads every user with a single query
+	@Override
+	public Map<String, String> loadUsers() {
+		SqlResult result = execute(ALL_USERS);
+		if (!result.isSuccess()) {
+			return null;
+		}
+		Map<String, String> users = new HashMap<>();
+		for (Object[] row : result.rows) {
+			users.put((String) row[0], (String) row[1]);
+		}
+		return users;
+	}
+
+	@Override
+	public CompletableFuture<String> findPassword(String username) {
+		return sqlPool.submit(FIND_USER, username).thenApply(result -> {
+			if (!result.isSuccess()) {
+				throw new IllegalStateException(result.error);
+			}
+			return result.rows.isEmpty() ? null : (String) result.rows.get(0)[0];
+		});
+	}
+
+	@Override
+	public void write(List<Write> writes) {
+		List<Object[]> users = new ArrayList<>();
+		List<List<Write>> sessions = new ArrayList<>(); // runs of consecutive logins, or consecutive logouts
+		List<Object[]> uploads = new ArrayList<>();
+		for (Write write : writes) {
+			if (write.kind == Kind.REGISTER) {
+				users.add(new Object[]{write.username, write.password, write.time});
+				continue;
+			}
+			if (write.kind == Kind.FILE_UPLOAD) {
+				uploads.add(new Object[]{write.username, write.filename, write.time, write.gameChannel});
+				continue;
+			}
+			if (sessions.isEmpty() || sessions.get(sessions.size() - 1).get(0).kind != write.kind) {
+				sessions.add(new ArrayList<>());
+			}
+			sessions.get(sessions.size() - 1).add(write);
+		}
+		if (!users.isEmpty()) {
+			executeBatch(REGISTER, users);
+		}
+		for (List<Write> run : sessions) {
+			List<Object[]> rows = new ArrayList<>(run.size());
+			for (Write session : run) {
+				rows.add(session.kind == Kind.LOGIN ? new Object[]{session.username, session.time}
+					: new Object[]{session.time, session.username});
+			}
+			executeBatch(run.get(0).kind == Kind.LOGIN ? LOGIN : LOGOUT, rows);
+		}
+		if (!uploads.isEmpty()) {
+			executeBatch(FILE_UPLOAD, uploads);
+		}
+	}
+
+	@Override
+	public long[] lastIds() {
+		SqlResult result = execute(LAST_IDS);
+		if (!result.isSuccess() || result.rows.isEmpty()) {
+			throw new IllegalStateException("could not read the last ids: " + result.error);
+		}
+		Object[] row = result.rows.get(0);
+		return new long[]{(Long) row[0], (Long) row[1], (Long) row[2]};
+	}
+
+	@Override
+	public List<String[]> users(long afterId, long toId, int limit) {
+		return query(USERS_PAGE, afterId, toId, limit);
+	}
+
+	@Override
+	public List<String[]> logins(long fromId, long toId, String afterUsername, long afterId, int limit) {
+		return query(LOGINS_PAGE, afterUsername, afterUsername, afterId, fromId, toId, limit);
+	}
+
+	@Override
+	public List<String[]> uploads(long fromId, long toId, String afterUsername, long afterId, int limit) {
+		return query(UPLOADS_PAGE, afterUsername, afterUsername, afterId, fromId, toId, limit);
+	}
+
+	@Override
+	public void close() {
+		sqlPool.close();
+	}
+
+	private void executeBatch(SqlStatement statement, List<Object[]> rows) {
+		SqlResult result = sqlPool.executeBatch(statement, rows);
+		if (!result.isSuccess()) {
+			System.err.println("[Database] Write-behind failed: " + result.error);
+		}
+	}
+
+	// the rows of a query, every value as text (null stays null)
+	private List<String[]> query(SqlStatement statement, Object... params) {
+		SqlResult result = execute(statement, params);
+		if (!result.isSuccess()) {
+			throw new IllegalStateException("could not read the report: " + result.error);
+		}
+		List<String[]> rows = new ArrayList<>(result.rows.size());
+		for (Object[] row : result.rows) {
+			String[] text = new String[row.length];
+			for (int i = 0; i < row.length; i++) {
+				text[i] = row[i] == null ? null : row[i].toString();
+			}
+			rows.add(text);
+		}
+		return rows;
+	}
+
+	private SqlResult execute(SqlStatement statement, Object... params) {
+		SqlResult result = sqlPool.execute(statement, params);
+		if (!result.isSuccess()) {
+			System.err.println("SQL Error: " + result.error);
+		}
+		return result;
+	}
+}
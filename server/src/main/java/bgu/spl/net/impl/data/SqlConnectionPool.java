@@ -0,0 +1,580 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A few long lived connections to the SQL server, shared by every thread of the server.
+ * the connections use the binary mode of the SQL server (see data/sql_server.py): statements are prepared once
+ * per connection and run with typed parameters, the rows come back typed, nothing is formatted into SQL or
+ * parsed out of text. a statement is written to a connection as soon as it is submitted, without waiting for
+ * the answers of the statements written before it (the SQL server answers the statements of a connection in
+ * order), and the answers are matched to the statements in the order they were written.
+ * the connections are non blocking and served by a single selector thread, submitting never waits and returns
+ * a future of the answer. the futures complete on the selector thread, so what is chained to them must not
+ * block (use the async variants of CompletableFuture for anything that might).
+ * a connection that fails is replaced the next time it is picked. so is a connection that does not answer a
+ * statement within the timeout, the SQL server may have stopped answering on it without closing it.
+ * closing the pool stops the selector thread and closes the connections, the requests still waiting fail.
+ */
+public class SqlConnectionPool {
+
+	public static final int DEFAULT_SIZE = 4;
+	public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+	// the binary protocol of the SQL server
+	private static final byte[] HANDSHAKE = "BINARY\0".getBytes(StandardCharsets.UTF_8);
+	private static final byte FRAME_PREPARE = 1, FRAME_EXECUTE = 2;
+	private static final byte FRAME_ROWS = 1, FRAME_DONE = 2, FRAME_ERROR = 3;
+	private static final byte VALUE_NULL = 0, VALUE_INTEGER = 1, VALUE_REAL = 2, VALUE_TEXT = 3;
+
+	/**
+	 * a connection, the requests waiting to be written to it and the ones waiting for their answers.
+	 * only the selector thread reads and writes the channel
+	 */
+	private final class SqlConnection {
+		final SocketChannel channel;
+		final ArrayDeque<ByteBuffer> outgoing = new ArrayDeque<>();
+		final ArrayDeque<CompletableFuture<SqlResult>> pending = new ArrayDeque<>();
+		final HashSet<Integer> prepared = new HashSet<>(); // the ids of the statements prepared on this connection
+		final ReentrantLock lock = new ReentrantLock(); // queuing a request and adding its future are done together
+		SelectionKey key;
+		byte[] in = new byte[8192]; // what was read and not parsed yet
+		int inLength = 0;
+		boolean handshaking = true; // until the text answer to the handshake is read
+		List<Object[]> rows = new ArrayList<>(); // the rows of the answer being read
+		volatile boolean broken = false;
+
+		SqlConnection() throws IOException {
+			channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			channel.connect(new InetSocketAddress(host, port));
+			outgoing.add(ByteBuffer.wrap(HANDSHAKE));
+		}
+
+		/**
+		 * queues the statement, preparing it first if this connection did not yet. the future completes with its
+		 * answer, or fails together with the connection
+		 */
+		CompletableFuture<SqlResult> send(SqlStatement statement, List<Object[]> params) {
+			CompletableFuture<SqlResult> answer = new CompletableFuture<>();
+			ByteBuffer execute = encodeExecute(statement, params);
+			lock.lock();
+			try {
+				if (prepared.add(statement.id)) {
+					outgoing.add(encodePrepare(statement));
+				}
+				outgoing.add(execute);
+				pending.add(answer);
+			} finally {
+				lock.unlock();
+			}
+			if (broken) {
+				fail(new IOException("the connection to the SQL server is closed"));
+			} else {
+				runOnSelector(this::updateInterest);
+			}
+			return answer;
+		}
+
+		// on the selector thread
+		void register() {
+			try {
+				key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		// on the selector thread, writing once there is something to write
+		void updateInterest() {
+			if (key == null || !key.isValid() || channel.isConnectionPending()) {
+				return;
+			}
+			lock.lock();
+			try {
+				key.interestOps(SelectionKey.OP_READ | (outgoing.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// on the selector thread
+		void handle() {
+			try {
+				if (key.isConnectable()) {
+					channel.finishConnect();
+					updateInterest();
+					return;
+				}
+				if (key.isWritable()) {
+					write();
+				}
+				if (key.isReadable()) {
+					read();
+				}
+			} catch (IOException | RuntimeException e) {
+				fail(e instanceof IOException ? (IOException) e : new IOException("bad answer from the SQL server", e));
+			}
+		}
+
+		private void write() throws IOException {
+			lock.lock();
+			try {
+				while (!outgoing.isEmpty()) {
+					ByteBuffer next = outgoing.peek();
+					channel.write(next);
+					if (next.hasRemaining()) {
+						return; //the socket is full, waiting for it to be writable again
+					}
+					outgoing.poll();
+				}
+				key.interestOps(SelectionKey.OP_READ);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void read() throws IOException {
+			readBuffer.clear();
+			int read = channel.read(readBuffer);
+			if (read == -1) {
+				throw new IOException("the SQL server closed the connection");
+			}
+			if (inLength + read > in.length) {
+				in = Arrays.copyOf(in, Math.max(inLength + read, in.length * 2));
+			}
+			System.arraycopy(readBuffer.array(), 0, in, inLength, read);
+			inLength += read;
+			ByteBuffer frames = ByteBuffer.wrap(in, 0, inLength);
+			if (handshaking && !readHandshake(frames)) {
+				return;
+			}
+			// every complete frame, the rest stays for the next read
+			while (frames.remaining() >= Integer.BYTES && frames.remaining() >= Integer.BYTES + frames.getInt(frames.position())) {
+				int length = frames.getInt();
+				int end = frames.position() + length;
+				readFrame(frames.get(), frames.limit(end));
+				frames.limit(inLength).position(end);
+			}
+			inLength = frames.remaining();
+			System.arraycopy(in, frames.position(), in, 0, inLength);
+		}
+
+		// the text answer to the handshake, false if it was not read whole yet
+		private boolean readHandshake(ByteBuffer frames) throws IOException {
+			for (int i = 0; i < inLength; i++) {
+				if (in[i] == '\0') {
+					String answer = new String(in, 0, i, StandardCharsets.UTF_8);
+					if (!answer.startsWith("SUCCESS")) {
+						throw new IOException("the SQL server has no binary mode: " + answer);
+					}
+					handshaking = false;
+					frames.position(i + 1);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void readFrame(byte type, ByteBuffer frame) {
+			if (type == FRAME_ROWS) {
+				int columns = frame.getShort();
+				int count = frame.getInt();
+				for (int i = 0; i < count; i++) {
+					Object[] row = new Object[columns];
+					for (int c = 0; c < columns; c++) {
+						row[c] = readValue(frame);
+					}
+					rows.add(row);
+				}
+				return;
+			}
+			SqlResult result = type == FRAME_DONE ? new SqlResult(rows, frame.getLong(), null)
+				: SqlResult.error(StandardCharsets.UTF_8.decode(frame).toString());
+			rows = new ArrayList<>();
+			CompletableFuture<SqlResult> next;
+			lock.lock();
+			try {
+				next = pending.poll();
+			} finally {
+				lock.unlock();
+			}
+			if (next != null) {
+				next.complete(result);
+			}
+		}
+
+		// the connection is not used again, every request waiting to be written or answered fails
+		void fail(IOException e) {
+			broken = true;
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+			}
+			List<CompletableFuture<SqlResult>> failed;
+			lock.lock();
+			try {
+				failed = new ArrayList<>(pending);
+				pending.clear();
+				outgoing.clear();
+			} finally {
+				lock.unlock();
+			}
+			for (CompletableFuture<SqlResult> answer : failed) {
+				answer.completeExceptionally(e);
+			}
+		}
+	}
+
+	private final String host;
+	private final int port;
+	private final long timeoutMillis;
+	private final AtomicReferenceArray<SqlConnection> connections;
+	private final ReentrantLock connecting = new ReentrantLock();
+	private final AtomicInteger next = new AtomicInteger();
+	private final Selector selector;
+	private final Thread loop;
+	private volatile boolean closed = false;
+	private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(8192); // only used by the selector thread
+	// metrics
+	private final LongAdder executed = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder opened = new LongAdder();
+
+	public SqlConnectionPool(String host, int port, int size, long timeoutMillis) {
+		if (size <= 0 || timeoutMillis <= 0) {
+			throw new IllegalArgumentException("the pool size and the timeout must be positive");
+		}
+		this.host = host;
+		this.port = port;
+		this.timeoutMillis = timeoutMillis;
+		this.connections = new AtomicReferenceArray<>(size);
+		try {
+			this.selector = Selector.open();
+		} catch (IOException e) {
+			throw new IllegalStateException("could not open a selector for the SQL server", e);
+		}
+		this.loop = new Thread(this::selectorLoop, "sql-selector");
+		loop.setDaemon(true);
+		loop.start();
+	}
+
+	public SqlConnectionPool(String host, int port) {
+		this(host, port, DEFAULT_SIZE, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * runs a statement with the parameters and waits for its answer
+	 * @return the answer of the SQL server, an error if it could not be run in time
+	 */
+	public SqlResult execute(SqlStatement statement, Object... params) {
+		return await(submit(statement, params));
+	}
+
+	/**
+	 * runs a statement once for every row of parameters, in one transaction, and waits for the answer
+	 * @return the answer of the SQL server, an error if it could not be run in time
+	 */
+	public SqlResult executeBatch(SqlStatement statement, List<Object[]> rows) {
+		return await(submitBatch(statement, rows));
+	}
+
+	/**
+	 * writes a statement with the parameters without waiting for its answer
+	 * @return the answer of the SQL server, failing if the connection fails or it does not come in time
+	 */
+	public CompletableFuture<SqlResult> submit(SqlStatement statement, Object... params) {
+		List<Object[]> rows = new ArrayList<>(1);
+		rows.add(params);
+		return submitBatch(statement, rows);
+	}
+
+	/**
+	 * writes a statement to run once for every row of parameters, without waiting for its answer
+	 * @return the answer of the SQL server, failing if the connection fails or it does not come in time
+	 */
+	public CompletableFuture<SqlResult> submitBatch(SqlStatement statement, List<Object[]> rows) {
+		SqlConnection connection;
+		CompletableFuture<SqlResult> answer;
+		try {
+			connection = connection();
+			answer = connection.send(statement, rows);
+		} catch (IOException e) {
+			connection = null;
+			answer = CompletableFuture.failedFuture(e);
+		}
+		SqlConnection sentOn = connection;
+		return answer.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((result, error) -> {
+			if (error == null) {
+				executed.increment();
+			} else if (error instanceof TimeoutException) {
+				timeouts.increment();
+				// the statements after it would wait for it too, the connection is replaced
+				if (!sentOn.broken) {
+					runOnSelector(() -> sentOn.fail(new IOException("the SQL server did not answer in time")));
+				}
+			} else {
+				failures.increment();
+			}
+		});
+	}
+
+	public int getSize() {
+		return connections.length();
+	}
+
+	/**
+	 * @return the number of connections currently open
+	 */
+	public int getOpenConnections() {
+		int open = 0;
+		for (int i = 0; i < connections.length(); i++) {
+			SqlConnection connection = connections.get(i);
+			if (connection != null && !connection.broken) {
+				open++;
+			}
+		}
+		return open;
+	}
+
+	/**
+	 * @return the number of requests submitted and not answered yet
+	 */
+	public int getInFlight() {
+		int inFlight = 0;
+		for (int i = 0; i < connections.length(); i++) {
+			SqlConnection connection = connections.get(i);
+			if (connection != null) {
+				connection.lock.lock();
+				try {
+					inFlight += connection.pending.size();
+				} finally {
+					connection.lock.unlock();
+				}
+			}
+		}
+		return inFlight;
+	}
+
+	public long getExecuted() {
+		return executed.sum();
+	}
+
+	/**
+	 * @return the number of statements not answered within the timeout
+	 */
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	/**
+	 * @return the number of statements that failed because of a broken connection
+	 */
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	/**
+	 * @return the number of connections opened so far, reconnections included
+	 */
+	public long getOpened() {
+		return opened.sum();
+	}
+
+	/**
+	 * closes the connections and stops the selector thread, waiting for it at most the timeout.
+	 * the requests not answered yet fail, and so do the ones submitted later
+	 */
+	public void close() {
+		closed = true;
+		selector.wakeup();
+		try {
+			loop.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SqlConnectionPool[size=" + getSize() + ", open=" + getOpenConnections() + ", inFlight="
+			+ getInFlight() + ", executed=" + getExecuted() + ", timeouts=" + getTimeouts()
+			+ ", failures=" + getFailures() + ", opened=" + getOpened() + "]";
+	}
+
+	private static SqlResult await(CompletableFuture<SqlResult> future) {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			return SqlResult.error(e.getCause() instanceof TimeoutException
+				? "timed out waiting for the SQL server" : e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return SqlResult.error("interrupted");
+		}
+	}
+
+	private void selectorLoop() {
+		try {
+			while (!closed && !Thread.currentThread().isInterrupted()) {
+				Runnable task;
+				while ((task = selectorTasks.poll()) != null) {
+					task.run();
+				}
+				selector.select();
+				for (SelectionKey key : selector.selectedKeys()) {
+					if (key.isValid()) {
+						((SqlConnection) key.attachment()).handle();
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			System.err.println("[Database] The SQL selector stopped: " + e.getMessage());
+		} finally {
+			closeConnections();
+		}
+	}
+
+	// on the selector thread once it stops, no connection is opened after it
+	private void closeConnections() {
+		closed = true;
+		connecting.lock();
+		try {
+			IOException e = new IOException("the connection pool of the SQL server is closed");
+			for (int i = 0; i < connections.length(); i++) {
+				SqlConnection connection = connections.get(i);
+				if (connection != null) {
+					connection.fail(e);
+				}
+			}
+		} finally {
+			connecting.unlock();
+		}
+		try {
+			selector.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	private void runOnSelector(Runnable task) {
+		selectorTasks.add(task);
+		selector.wakeup();
+	}
+
+	// the connections are used in turns, a broken or missing one is opened again
+	private SqlConnection connection() throws IOException {
+		int index = Math.floorMod(next.getAndIncrement(), connections.length());
+		SqlConnection connection = connections.get(index);
+		if (connection != null && !connection.broken) {
+			return connection;
+		}
+		connecting.lock();
+		try {
+			if (closed) {
+				throw new IOException("the connection pool of the SQL server is closed");
+			}
+			connection = connections.get(index);
+			if (connection == null || connection.broken) {
+				connection = new SqlConnection();
+				opened.increment();
+				runOnSelector(connection::register);
+				connections.set(index, connection);
+			}
+			return connection;
+		} finally {
+			connecting.unlock();
+		}
+	}
+
+	private static ByteBuffer encodePrepare(SqlStatement statement) {
+		byte[] sql = statement.sql.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(2 * Integer.BYTES + 1 + sql.length);
+		frame.putInt(frame.capacity() - Integer.BYTES).put(FRAME_PREPARE).putInt(statement.id).put(sql);
+		return frame.flip();
+	}
+
+	private static ByteBuffer encodeExecute(SqlStatement statement, List<Object[]> rows) {
+		int columns = rows.isEmpty() ? 0 : rows.get(0).length;
+		byte[][] texts = new byte[rows.size() * columns][];
+		int size = 1 + Integer.BYTES + Short.BYTES + Integer.BYTES;
+		for (int r = 0; r < rows.size(); r++) {
+			Object[] row = rows.get(r);
+			if (row.length != columns) {
+				throw new IllegalArgumentException("every row must have the same number of parameters");
+			}
+			for (int c = 0; c < columns; c++) {
+				Object value = row[c];
+				if (value == null) {
+					size += 1;
+				} else if (value instanceof Long || value instanceof Integer || value instanceof Short
+					|| value instanceof Double || value instanceof Float) {
+					size += 1 + Long.BYTES;
+				} else {
+					texts[r * columns + c] = value.toString().getBytes(StandardCharsets.UTF_8);
+					size += 1 + Integer.BYTES + texts[r * columns + c].length;
+				}
+			}
+		}
+		ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + size);
+		frame.putInt(size).put(FRAME_EXECUTE).putInt(statement.id).putShort((short) columns).putInt(rows.size());
+		for (int r = 0; r < rows.size(); r++) {
+			for (int c = 0; c < columns; c++) {
+				Object value = rows.get(r)[c];
+				byte[] text = texts[r * columns + c];
+				if (text != null) {
+					frame.put(VALUE_TEXT).putInt(text.length).put(text);
+				} else if (value == null) {
+					frame.put(VALUE_NULL);
+				} else if (value instanceof Double || value instanceof Float) {
+					frame.put(VALUE_REAL).putDouble(((Number) value).doubleValue());
+				} else {
+					frame.put(VALUE_INTEGER).putLong(((Number) value).longValue());
+				}
+			}
+		}
+		return frame.flip();
+	}
+
+	private static Object readValue(ByteBuffer frame) {
+		switch (frame.get()) {
+			case VALUE_INTEGER:
+				return frame.getLong();
+			case VALUE_REAL:
+				return frame.getDouble();
+			case VALUE_TEXT:
+				int length = frame.getInt();
+				String text = new String(frame.array(), frame.arrayOffset() + frame.position(), length,
+					StandardCharsets.UTF_8);
+				frame.position(frame.position() + length);
+				return text;
+			default:
+				return null;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+package bgu.spl.net.impl.data;
+
+import java.util.List;
+
+/**
+ * The answer of the SQL server to a statement: the rows of a query, with their values typed (null, Long, Double
+ * or String), the number of rows changed by another statement, or the error that failed it
+ */
+public final class SqlResult {
+
+	public final List<Object[]> rows;
+	public final long affected; // -1 for a query
+	public final String error; // null if it succeeded
+
+	public SqlResult(List<Object[]> rows, long affected, String error) {
+		this.rows = rows;
+		this.affected = affected;
+		this.error = error;
+	}
+
+	public static SqlResult error(String error) {
+		return new SqlResult(List.of(), 0, error);
+	}
+
+	public boolean isSuccess() {
+		return error == null;
+	}
+
+	@Override
+	public String toString() {
+		return isSuccess() ? "SUCCESS: " + (affected >= 0 ? affected + " rows affected" : rows.size() + " rows")
+			: "ERROR: " + error;
+	}
+}
@@ -0,0 +1,25 @@
+package bgu.spl.net.impl.data;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A statement with ? parameters, prepared once on every connection to the SQL server that runs it.
+ * the ids are given here, so a statement is run right after it is prepared without waiting for an answer
+ */
+public final class SqlStatement {
+
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	public final int id;
+	public final String sql;
+
+	public SqlStatement(String sql) {
+		this.id = nextId.getAndIncrement();
+		this.sql = sql;
+	}
+
+	@Override
+	public String toString() {
+		return sql;
+	}
+}
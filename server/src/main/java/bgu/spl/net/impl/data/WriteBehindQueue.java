@@ -0,0 +1,193 @@
+package bgu.spl.net.impl.data;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The writes of the database (new users, logins, logouts and file uploads), given to its backend by a
+ * background thread so the threads serving clients never wait for the backend to write them.
+ * the flusher takes what was queued within the flush interval and gives it to the backend as one batch,
+ * every write keeps the time it was made. the queue is bounded, when it is full adding waits for room.
+ */
+public class WriteBehindQueue {
+
+	public static final int DEFAULT_CAPACITY = 1 << 14;
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 50;
+	// writes given to the backend at once
+	private static final int MAX_BATCH = 500;
+	// the format of sqlite's datetime('now'), which is in UTC
+	/*package*/ static final DateTimeFormatter SQL_TIME =
+		DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+
+	public enum Kind { REGISTER, LOGIN, LOGOUT, FILE_UPLOAD, FLUSH }
+
+	/**
+	 * a write and the time it was made, in the format of sqlite's datetime('now')
+	 */
+	public static final class Write {
+		public final Kind kind;
+		public final String username;
+		public final String password; // only for REGISTER
+		public final String filename; // only for FILE_UPLOAD
+		public final String gameChannel; // only for FILE_UPLOAD
+		public final String time;
+		final CountDownLatch written; // only for FLUSH, released once everything before it is written
+
+		Write(Kind kind, String username, String password, String filename, String gameChannel) {
+			this.kind = kind;
+			this.username = username;
+			this.password = password;
+			this.filename = filename;
+			this.gameChannel = gameChannel;
+			this.time = SQL_TIME.format(Instant.now());
+			this.written = kind == Kind.FLUSH ? new CountDownLatch(1) : null;
+		}
+	}
+
+	private final DatabaseBackend backend;
+	private final BlockingQueue<Write> queue;
+	private final long flushIntervalMillis;
+	private final Thread flusher;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param backend where the writes are kept
+	 */
+	public WriteBehindQueue(DatabaseBackend backend, int capacity, long flushIntervalMillis) {
+		if (capacity <= 0 || flushIntervalMillis <= 0) {
+			throw new IllegalArgumentException("the capacity and the flush interval must be positive");
+		}
+		this.backend = backend;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.flusher = new Thread(this::flushLoop, "sql-write-behind");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	public WriteBehindQueue(DatabaseBackend backend) {
+		this(backend, DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL_MILLIS);
+	}
+
+	public void register(String username, String password) {
+		add(new Write(Kind.REGISTER, username, password, null, null));
+	}
+
+	public void login(String username) {
+		add(new Write(Kind.LOGIN, username, null, null, null));
+	}
+
+	public void logout(String username) {
+		add(new Write(Kind.LOGOUT, username, null, null, null));
+	}
+
+	public void fileUpload(String username, String filename, String gameChannel) {
+		add(new Write(Kind.FILE_UPLOAD, username, null, filename, gameChannel));
+	}
+
+	/**
+	 * waits until everything queued so far is written
+	 */
+	public void flush() {
+		Write marker = new Write(Kind.FLUSH, null, null, null, null);
+		add(marker);
+		try {
+			marker.written.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the number of writes waiting to be flushed
+	 */
+	public int getPending() {
+		return queue.size();
+	}
+
+	/**
+	 * stops taking writes and waits until everything queued is written
+	 */
+	public void close() {
+		closed = true;
+		try {
+			flusher.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// whatever was added while the flusher was finishing
+		List<Write> rest = new ArrayList<>();
+		queue.drainTo(rest);
+		write(rest);
+	}
+
+	private void add(Write write) {
+		if (closed) {
+			write(List.of(write));
+			return;
+		}
+		try {
+			queue.put(write);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			write(List.of(write)); //not lost, written by the caller instead
+		}
+	}
+
+	private void flushLoop() {
+		List<Write> batch = new ArrayList<>();
+		while (!closed || !queue.isEmpty()) {
+			try {
+				Write first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				// collecting what comes in within the interval, so it is written with the first one
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+				while (batch.size() < MAX_BATCH && !closed) {
+					queue.drainTo(batch, MAX_BATCH - batch.size());
+					long remaining = deadline - System.nanoTime();
+					if (batch.size() >= MAX_BATCH || remaining <= 0) {
+						break;
+					}
+					Write next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				queue.drainTo(batch, MAX_BATCH - batch.size());
+			} catch (InterruptedException e) {
+				closed = true;
+			}
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	private void write(List<Write> batch) {
+		List<Write> writes = new ArrayList<>(batch.size());
+		List<Write> flushes = new ArrayList<>();
+		for (Write write : batch) {
+			(write.kind == Kind.FLUSH ? flushes : writes).add(write);
+		}
+		if (!writes.isEmpty()) {
+			try {
+				backend.write(writes);
+			} catch (RuntimeException e) {
+				System.err.println("[Database] Write-behind failed: " + e.getMessage());
+			}
+		}
+		for (Write flush : flushes) {
+			flush.written.countDown();
+		}
+	}
+}
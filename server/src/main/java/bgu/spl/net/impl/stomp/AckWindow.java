@@ -0,0 +1,173 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * The messages sent on a subscription with client or client-individual acknowledgment that the client did not
+ * acknowledge yet. every message of the subscription gets the next sequence number, the window keeps the messages
+ * of the last {@link #getCapacity} numbers in a ring with a bitmap of the acknowledged ones, so acknowledging
+ * is flipping bits and nothing is allocated per message. messages arriving while the window is full wait
+ * and are sent as acknowledgments make room, this is the flow control of the subscription.
+ * the monitor of the window must be held around every call, so the messages are numbered and sent in order.
+ */
+public class AckWindow {
+
+    public enum Mode {
+        AUTO, CLIENT, CLIENT_INDIVIDUAL;
+
+        /**
+         * @return the mode of the ack header of a SUBSCRIBE frame, null if it is not one
+         */
+        public static Mode of(String header) {
+            if (header == null || header.equals("auto")) {
+                return AUTO;
+            }
+            if (header.equals("client")) {
+                return CLIENT;
+            }
+            return header.equals("client-individual") ? CLIENT_INDIVIDUAL : null;
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final boolean cumulative; // client mode, acknowledging a message acknowledges the ones before it
+    private final ByteBuffer[] messages;
+    private final long[] acked; // a bit for every slot of the ring
+    private long first = 0; // every message before it was acknowledged
+    private long next = 0; // the number of the next message
+    private final ArrayDeque<ByteBuffer> waiting = new ArrayDeque<>();
+
+    public AckWindow(Mode mode, int capacity) {
+        if (mode == Mode.AUTO || capacity <= 0) {
+            throw new IllegalArgumentException("an ack window needs an ack mode and a positive capacity");
+        }
+        this.cumulative = mode == Mode.CLIENT;
+        this.messages = new ByteBuffer[capacity];
+        this.acked = new long[(capacity + Long.SIZE - 1) / Long.SIZE];
+    }
+
+    public int getCapacity() {
+        return messages.length;
+    }
+
+    /**
+     * @return true if no more messages may be sent before some are acknowledged
+     */
+    /*package*/ boolean isFull() {
+        return next - first == messages.length;
+    }
+
+    /**
+     * adds a message about to be sent, the window must not be full
+     * @return its sequence number
+     */
+    /*package*/ long add(ByteBuffer tail) {
+        long seq = next++;
+        int slot = slot(seq);
+        messages[slot] = tail;
+        acked[slot / Long.SIZE] &= ~(1L << slot);
+        return seq;
+    }
+
+    /**
+     * @return the message of the sequence number if it is still waiting for its acknowledgment, or null
+     */
+    /*package*/ ByteBuffer get(long seq) {
+        return isPending(seq) ? messages[slot(seq)] : null;
+    }
+
+    /**
+     * keeps a message until there is room for it in the window
+     * @param dropOldest drops the oldest waiting message when too many are waiting, instead of refusing
+     * @return false if too many messages are already waiting
+     */
+    /*package*/ boolean hold(ByteBuffer tail, boolean dropOldest) {
+        if (waiting.size() >= messages.length) {
+            if (!dropOldest) {
+                return false;
+            }
+            waiting.poll();
+        }
+        waiting.add(tail);
+        return true;
+    }
+
+    /**
+     * @return the oldest waiting message if there is room for it, or null
+     */
+    /*package*/ ByteBuffer nextWaiting() {
+        return isFull() ? null : waiting.poll();
+    }
+
+    /**
+     * acknowledges the message, and the ones before it in client mode
+     * @return false if the message is not waiting for its acknowledgment
+     */
+    /*package*/ boolean ack(long seq) {
+        if (!isPending(seq)) {
+            return false;
+        }
+        for (long s = cumulative ? first : seq; s <= seq; s++) {
+            int slot = slot(s);
+            acked[slot / Long.SIZE] |= 1L << slot;
+            messages[slot] = null;
+        }
+        while (first < next && isAcked(first)) {
+            first++;
+        }
+        return true;
+    }
+
+    /**
+     * runs the action on the sequence numbers to send again after a NACK of the message, the message and,
+     * in client mode, the unacknowledged ones before it. they stay in the window
+     * @return false if the message is not waiting for its acknowledgment
+     */
+    /*package*/ boolean nack(long seq, LongConsumer redeliver) {
+        if (!isPending(seq)) {
+            return false;
+        }
+        for (long s = cumulative ? first : seq; s <= seq; s++) {
+            if (!isAcked(s)) {
+                redeliver.accept(s);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * empties the window
+     * @return the messages never acknowledged, oldest first, followed by the ones still waiting
+     */
+    /*package*/ List<ByteBuffer> drain() {
+        List<ByteBuffer> pending = new ArrayList<>();
+        for (long s = first; s < next; s++) {
+            if (!isAcked(s)) {
+                pending.add(messages[slot(s)]);
+                messages[slot(s)] = null;
+            }
+        }
+        pending.addAll(waiting);
+        waiting.clear();
+        first = next;
+        return pending;
+    }
+
+    private boolean isPending(long seq) {
+        return seq >= first && seq < next && !isAcked(seq);
+    }
+
+    private boolean isAcked(long seq) {
+        int slot = slot(seq);
+        return (acked[slot / Long.SIZE] & (1L << slot)) != 0;
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % messages.length);
+    }
+}
@@ -1,116 +1,502 @@
 
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.impl.stomp.StompFrame.Command;
 import bgu.spl.net.srv.Connections;
 import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.ConnectionIds;
+import bgu.spl.net.srv.ConnectionMap;
+import bgu.spl.net.srv.OutboundLimits;
 
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ConnectionsImpl<T> implements Connections<T> {
-    private final ConcurrentHashMap<Integer, ConnectionHandler<T>> ClientHandler = new ConcurrentHashMap<>();
-    // using nested hash map for connection id -> subcrcription id
-    public final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Integer>> TopicToClient = new ConcurrentHashMap<>();
-    // client to topic map for disconnecting
-    public final ConcurrentHashMap<Integer, ConcurrentHashMap<String, Integer>> ClinetToTopic = new ConcurrentHashMap<>();
+    // the connected clients by connection id, the ids are given out here and reused after disconnecting
+    private final ConnectionIds connectionIds = new ConnectionIds();
+    private final ConnectionMap<Client<T>> clients = new ConnectionMap<>();
+    // every destination and destination pattern that was subscribed to, with its subscribers
+    private final TopicTree<T> topics;
     // message id counter
-    private static AtomicInteger messageIdCounter = new AtomicInteger(0);
+    // the id of the next message, after the ones in the journal so that a replay never repeats an id
+    private final AtomicInteger messageIdCounter;
+    // limits on the bytes queued for the clients
+    private final OutboundLimits limits;
+    // every message sent, kept on disk for clients resuming later, null if not kept
+    private final Journal journal;
+    // the most messages a subscription with acknowledgments gets before acknowledging them
+    private final int ackWindow;
+    // the messages a user did not acknowledge before disconnecting, sent again when it subscribes again
+    private final UnacknowledgedMessages unacknowledged;
+    // numbers the subscriptions, an ack id of an earlier subscription with the same id is refused
+    private final AtomicLong subscriptionGenerations = new AtomicLong();
+
+    /**
+     * @param historySize the number of messages every destination keeps for clients subscribing later, 0 for none
+     * @param journal where every message sent is written, null for none
+     * @param ackWindow the most unacknowledged messages of a subscription in client or client-individual mode
+     * @param unackedRetentionBytes the most bytes kept for users that disconnected without acknowledging them
+     * @param unackedRetentionMillis how long they are kept
+     */
+    public ConnectionsImpl(OutboundLimits limits, int historySize, Journal journal, int ackWindow,
+            long unackedRetentionBytes, long unackedRetentionMillis) {
+        this.limits = limits;
+        this.topics = new TopicTree<>(historySize);
+        this.journal = journal;
+        this.messageIdCounter = new AtomicInteger(firstMessageId(journal));
+        this.ackWindow = ackWindow;
+        // at most what two windows hold, for every user and destination
+        this.unacknowledged = new UnacknowledgedMessages(limits, 2 * ackWindow, unackedRetentionBytes,
+                unackedRetentionMillis);
+    }
+
+    public ConnectionsImpl(OutboundLimits limits, int historySize, Journal journal, int ackWindow) {
+        this(limits, historySize, journal, ackWindow, UnacknowledgedMessages.DEFAULT_RETENTION_BYTES,
+                UnacknowledgedMessages.DEFAULT_RETENTION_MILLIS);
+    }
+
+    public ConnectionsImpl(OutboundLimits limits, int historySize, Journal journal) {
+        this(limits, historySize, journal, AckWindow.DEFAULT_CAPACITY);
+    }
+
+    public ConnectionsImpl(OutboundLimits limits, int historySize) {
+        this(limits, historySize, null);
+    }
+
+    public ConnectionsImpl(OutboundLimits limits) {
+        this(limits, 0);
+    }
+
+    public ConnectionsImpl() {
+        this(new OutboundLimits());
+    }
+
+    /**
+     * a connected client: its handler, its subscriptions by subscription id and the user it logged in as
+     */
+    private static class Client<T> {
+        final ConnectionHandler<T> handler;
+        final ConcurrentHashMap<Integer, Topic.Subscriber<T>> subscriptions = new ConcurrentHashMap<>();
+        volatile String username;
+
+        Client(ConnectionHandler<T> handler) {
+            this.handler = handler;
+        }
+    }
+
+    public OutboundLimits getOutboundLimits() {
+        return limits;
+    }
+
+    /**
+     * @return an id for a new connection, given back when the connection is disconnected
+     */
+    public int newConnectionId() {
+        return connectionIds.acquire();
+    }
 
     @Override
     public boolean send(int connectionId, T msg) {
-        ConnectionHandler<T> handler = ClientHandler.get(connectionId);
-        if (handler != null) {
-            handler.send(msg);
+        Client<T> client = clients.get(connectionId);
+        if (client != null) {
+            client.handler.send(msg);
             return true;
         }
         return false;
 
     }
 
+    /**
+     * sends a last message to the client after the ones waiting and closes the connection once they are written,
+     * for a protocol ending the connection outside of processing a frame (the handler checks shouldTerminate
+     * only after processing one)
+     * @return false if the client is not connected
+     */
+    public boolean sendAndClose(int connectionId, T msg) {
+        Client<T> client = clients.get(connectionId);
+        if (client == null) {
+            return false;
+        }
+        disconnect(connectionId);
+        client.handler.sendAndClose(msg, true);
+        return true;
+    }
+
     @Override
     public void send(String channel, T msg) {
-        ConcurrentHashMap<Integer, Integer> subscribers = TopicToClient.get(channel);
-        if (subscribers != null) {
-            int msgId = messageIdCounter.getAndIncrement();
-            // for each subscriber send the message with the subscription id and message id
-            for (Integer Id : subscribers.keySet()) {
-                // getting the subscription id
-                Integer subId = subscribers.get(Id);
-                // creating the message string
-                String msgString = "MESSAGE\nsubscription:" + subId + "\nmessage-id:" + msgId + "\ndestination:"
-                        + channel + "\n\n" + msg + "\u0000";
-                send(Id, (T) msgString);
+        // the topic of the destination itself and the topics of the patterns matching it
+        Topic<T>[] matched = topics.match(channel);
+        if (matched.length == 0) {
+            return;
+        }
+        // over the global budget the message is not even encoded, nobody would get it, unless it is journaled
+        if (journal == null && limits.isExhausted()) {
+            return;
+        }
+        // the topic of the destination keeps the message, it is kept and sent together under its lock
+        // so a client subscribing with a replay misses nothing
+        Topic<T> own = topics.getExact(channel);
+        RetainedHistory history = own != null ? own.getHistory() : null;
+        boolean locked = own != null && (history != null || journal != null);
+        if (locked) {
+            own.lock();
+        }
+        try {
+            ByteBuffer tail = record(channel, (StompFrame) msg, history);
+            if (limits.isExhausted()) {
+                return;
+            }
+            // for each subscriber send the message with the subscription id and the shared part
+            for (Topic<T> topic : matched) {
+                for (Topic.Subscriber<T> subscriber : topic.getSubscribers()) {
+                    deliver(subscriber, tail);
+                }
+            }
+        } finally {
+            if (locked) {
+                own.unlock();
+            }
+        }
+
+    }
+
+    /**
+     * sends messages to the same destination together, every subscriber gets them in one write.
+     * subscribers acknowledging messages get them one by one, each needs its own place in the window
+     */
+    public void send(String channel, List<T> msgs) {
+        Topic<T>[] matched = topics.match(channel);
+        if (matched.length == 0 || msgs.isEmpty()) {
+            return;
+        }
+        if (journal == null && limits.isExhausted()) {
+            return;
+        }
+        Topic<T> own = topics.getExact(channel);
+        RetainedHistory history = own != null ? own.getHistory() : null;
+        boolean locked = own != null && (history != null || journal != null);
+        if (locked) {
+            own.lock();
+        }
+        try {
+            ByteBuffer[] tails = new ByteBuffer[msgs.size()];
+            for (int i = 0; i < tails.length; i++) {
+                tails[i] = record(channel, (StompFrame) msgs.get(i), history);
+            }
+            if (limits.isExhausted()) {
+                return;
+            }
+            for (Topic<T> topic : matched) {
+                for (Topic.Subscriber<T> subscriber : topic.getSubscribers()) {
+                    deliver(subscriber, tails);
+                }
+            }
+        } finally {
+            if (locked) {
+                own.unlock();
+            }
+        }
+    }
+
+    // gives the message an id, encodes everything but the subscription header once since it is the same for
+    // all subscribers, and keeps it in the journal and the history
+    private ByteBuffer record(String channel, StompFrame sent, RetainedHistory history) {
+        // the id is taken while the journal is locked, so the newest message in the journal has the highest id
+        int[] messageId = {-1};
+        ByteBuffer tail = null;
+        if (journal != null) {
+            tail = journal.append(channel, offset -> {
+                if (messageId[0] < 0) {
+                    messageId[0] = messageIdCounter.getAndIncrement();
+                }
+                return encodeTail(sent, String.valueOf(messageId[0]), channel, offset);
+            });
+        }
+        if (tail == null) {
+            if (messageId[0] < 0) {
+                messageId[0] = messageIdCounter.getAndIncrement();
+            }
+            tail = encodeTail(sent, String.valueOf(messageId[0]), channel, -1);
+        }
+        if (history != null) {
+            history.add(messageId[0], tail);
+        }
+        return tail;
+    }
+
+    // the id after the one of the newest message in the journal, 0 if there is none
+    private static int firstMessageId(Journal journal) {
+        ByteBuffer last = journal != null ? journal.getLastMessage() : null;
+        if (last == null) {
+            return 0;
+        }
+        // the encoded message starts with its headers, one per line up to an empty one
+        StringBuilder line = new StringBuilder();
+        for (int i = last.position(); i < last.limit(); i++) {
+            char c = (char) last.get(i);
+            if (c != '\n') {
+                line.append(c);
+                continue;
+            }
+            if (line.length() == 0) {
+                break;
+            }
+            String header = line.toString();
+            if (header.startsWith("message-id:")) {
+                try {
+                    return Integer.parseInt(header.substring("message-id:".length())) + 1;
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            }
+            line.setLength(0);
+        }
+        return 0;
+    }
+
+    /**
+     * @param offset the offset of the message in the journal, -1 if it is not in the journal
+     */
+    private static ByteBuffer encodeTail(StompFrame sent, String msgId, String channel, long offset) {
+        if (offset < 0) {
+            return StompFrame.encodeTail(sent.getBody(), sent.getBodyOffset(), sent.getBodyLength(),
+                    "message-id", msgId, "destination", channel);
+        }
+        return StompFrame.encodeTail(sent.getBody(), sent.getBodyOffset(), sent.getBodyLength(),
+                "message-id", msgId, "destination", channel, "journal-offset", String.valueOf(offset));
+    }
+
+    private void deliver(Topic.Subscriber<T> subscriber, ByteBuffer tail) {
+        AckWindow window = subscriber.window;
+        if (window != null) {
+            deliverAcknowledged(subscriber, window, tail);
+            return;
+        }
+        if (!subscriber.handler.sendDroppable(
+                (T) StompFrame.withEncodedTail(Command.MESSAGE, tail, "subscription", subscriber.subscription))) {
+            disconnectSlowConsumer(subscriber.connectionId, subscriber.handler);
+        }
+    }
+
+    private void deliver(Topic.Subscriber<T> subscriber, ByteBuffer[] tails) {
+        if (subscriber.window != null || tails.length == 1) {
+            for (ByteBuffer tail : tails) {
+                deliver(subscriber, tail);
+            }
+            return;
+        }
+        StompFrame[] frames = new StompFrame[tails.length];
+        for (int i = 0; i < tails.length; i++) {
+            frames[i] = StompFrame.withEncodedTail(Command.MESSAGE, tails[i], "subscription", subscriber.subscription);
+        }
+        if (!subscriber.handler.sendDroppable((T) StompFrame.batch(frames))) {
+            disconnectSlowConsumer(subscriber.connectionId, subscriber.handler);
+        }
+    }
+
+    // the message waits in the window of the subscription until it is acknowledged, it is never dropped
+    // by the handler, the window limits what is queued for the client instead
+    private void deliverAcknowledged(Topic.Subscriber<T> subscriber, AckWindow window, ByteBuffer tail) {
+        synchronized (window) {
+            if (!window.isFull()) {
+                sendAcknowledged(subscriber, window.add(tail), tail, false);
+                return;
+            }
+            if (window.hold(tail, limits.getPolicy() == OutboundLimits.SlowConsumerPolicy.DROP_OLDEST)) {
+                return;
+            }
+        }
+        disconnectSlowConsumer(subscriber.connectionId, subscriber.handler);
+    }
+
+    // the ack id is the subscription id, its generation and the sequence number of the message
+    private void sendAcknowledged(Topic.Subscriber<T> subscriber, long seq, ByteBuffer tail, boolean redelivered) {
+        String ack = subscriber.subscription + "-" + subscriber.generation + "-" + seq;
+        subscriber.handler.send((T) (redelivered
+                ? StompFrame.withEncodedTail(Command.MESSAGE, tail, "subscription", subscriber.subscription,
+                        "ack", ack, "redelivered", "true")
+                : StompFrame.withEncodedTail(Command.MESSAGE, tail, "subscription", subscriber.subscription,
+                        "ack", ack)));
+    }
+
+    /**
+     * acknowledges a message, or sends it again on a NACK, then sends the messages the window has room for
+     * @param ack the ack header of the message
+     * @return false if the message is not waiting for an acknowledgment from the client, also when it was sent
+     * on an earlier subscription with the same id
+     */
+    public boolean acknowledge(int connectionId, String ack, boolean consumed) {
+        Client<T> client = clients.get(connectionId);
+        int second = ack.lastIndexOf('-');
+        int first = second > 0 ? ack.lastIndexOf('-', second - 1) : -1;
+        if (client == null || first <= 0) {
+            return false;
+        }
+        Topic.Subscriber<T> subscriber;
+        long generation;
+        long seq;
+        try {
+            subscriber = client.subscriptions.get(Integer.parseInt(ack.substring(0, first)));
+            generation = Long.parseLong(ack.substring(first + 1, second));
+            seq = Long.parseLong(ack.substring(second + 1));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        AckWindow window = subscriber != null ? subscriber.window : null;
+        if (window == null || subscriber.generation != generation) {
+            return false;
+        }
+        synchronized (window) {
+            boolean pending = consumed ? window.ack(seq)
+                    : window.nack(seq, s -> sendAcknowledged(subscriber, s, window.get(s), true));
+            ByteBuffer tail;
+            while ((tail = window.nextWaiting()) != null) {
+                sendAcknowledged(subscriber, window.add(tail), tail, false);
             }
+            return pending;
         }
+    }
 
+    // the client is too far behind, it gets an error instead of what it did not read yet
+    private void disconnectSlowConsumer(int connectionId, ConnectionHandler<T> handler) {
+        disconnect(connectionId);
+        handler.sendAndClose((T) StompFrame.withBody(Command.ERROR,
+                "Too many messages are waiting to be sent to this client.",
+                "message", "Slow Consumer"));
     }
 
     @Override
     public void disconnect(int connectionId) {
-        // getting the nested hash map of the topics the client is subscribe to
-        ConcurrentHashMap<String, Integer> Topics = ClinetToTopic.get(connectionId);
-        // removes the cliewnt from the handler map
-        ClientHandler.remove(connectionId);
-        // for every topic removes the client from the topics
-        if (Topics != null) {
-            for (String topic : Topics.keySet()) {
-                ConcurrentHashMap<Integer, Integer> topics = TopicToClient.get(topic);
-                if (topics != null) {
-                    topics.remove(connectionId);
+        // removes the client, only the first disconnect of a connection finds it
+        Client<T> client = clients.remove(connectionId);
+        if (client == null) {
+            return;
+        }
+        // however the connection ended, its user is not logged in anymore
+        Database.getInstance().logout(connectionId);
+        // removes every subscription of the client from its topic, keeping what it did not acknowledge
+        for (Topic.Subscriber<T> subscription : client.subscriptions.values()) {
+            subscription.topic.unsubscribe(subscription);
+            if (subscription.window != null && client.username != null) {
+                List<ByteBuffer> pending;
+                synchronized (subscription.window) {
+                    pending = subscription.window.drain();
+                }
+                if (!pending.isEmpty()) {
+                    unacknowledged.keep(client.username, subscription.topic.getName(), pending);
                 }
-
             }
         }
-        // removes from the clientTopic list
-        ClinetToTopic.remove(connectionId);
+        connectionIds.release(connectionId);
 
     }
 
     public void disconnectAll() {
-        for (Integer id : ClientHandler.keySet()) {
-            disconnect(id);
-        }
+        clients.forEachId(this::disconnect);
     }
 
     public void connect(int connectionId, ConnectionHandler<T> handler) {
         if (handler != null) {
-            ClientHandler.put(connectionId, handler);
+            clients.put(connectionId, new Client<>(handler));
+        }
+    }
+
+    /**
+     * remembers the user the client logged in as, its unacknowledged messages are kept for it on disconnect
+     * @return false if the client is not connected anymore
+     */
+    public boolean login(int connectionId, String username) {
+        Client<T> client = clients.get(connectionId);
+        if (client != null) {
+            client.username = username;
+            return true;
         }
+        return false;
     }
 
     public void subscribe(int connectionId, int subId, String channel) {
-        TopicToClient.computeIfAbsent(channel, a -> new ConcurrentHashMap<>())
-                .put(connectionId, subId);
-        ClinetToTopic.computeIfAbsent(connectionId, a -> new ConcurrentHashMap<>())
-                .put(channel, subId);
+        subscribe(connectionId, subId, channel, 0, -1, -1, AckWindow.Mode.AUTO);
     }
 
-    public void unsubscribe(int connectionId, String channel) {
-        if (channel != null) {
-            ConcurrentHashMap<Integer, Integer> clients = TopicToClient.get(channel);
-            ConcurrentHashMap<String, Integer> topics = ClinetToTopic.get(connectionId);
-            if (clients != null) {
-                clients.remove(connectionId);
+    /**
+     * subscribes the client and sends it the messages the destination kept from before, if it keeps any
+     * @param replayLast at most that many of the kept messages, -1 for all of them
+     * @param replaySince only the kept messages with a greater message id, -1 for all of them
+     * @param journalOffset the messages in the journal from that offset on instead of the kept ones,
+     * -1 for none. only exact destinations can be resumed from the journal
+     * @param ackMode how the client acknowledges the messages of the subscription
+     */
+    public void subscribe(int connectionId, int subId, String channel, int replayLast, long replaySince,
+            long journalOffset, AckWindow.Mode ackMode) {
+        Client<T> client = clients.get(connectionId);
+        if (client == null) {
+            return; //already disconnected
+        }
+        Topic<T> topic = topics.getOrCreate(channel);
+        RetainedHistory history = topic.getHistory();
+        boolean resume = journal != null && journalOffset >= 0 && !TopicTree.isPattern(channel);
+        boolean replay = !resume && history != null && (replayLast != 0 || replaySince >= 0);
+        AckWindow window = ackMode == AckWindow.Mode.AUTO ? null : new AckWindow(ackMode, ackWindow);
+        Topic.Subscriber<T> subscriber = new Topic.Subscriber<>(topic, connectionId, client.handler, subId, window,
+                subscriptionGenerations.incrementAndGet());
+        // first what the user did not acknowledge before it disconnected last time
+        List<ByteBuffer> missed = client.username != null
+                ? unacknowledged.take(client.username, channel) : null;
+        if (missed != null) {
+            for (ByteBuffer tail : missed) {
+                deliver(subscriber, tail);
             }
-            if (topics != null) {
-                topics.remove(channel);
+        }
+        if (resume) {
+            // most of the journal is sent before taking the lock, so publishers only wait for the last part
+            long offset = journal.replay(channel, journalOffset, journal.getEndOffset(),
+                    tail -> deliver(subscriber, tail));
+            topic.lock();
+            try {
+                journal.replay(channel, offset, journal.getEndOffset(), tail -> deliver(subscriber, tail));
+                topic.subscribe(subscriber);
+            } finally {
+                topic.unlock();
             }
-
+        } else if (replay) {
+            topic.lock();
+            try {
+                history.forEach(replayLast, replaySince, tail -> deliver(subscriber, tail));
+                topic.subscribe(subscriber);
+            } finally {
+                topic.unlock();
+            }
+        } else {
+            topic.subscribe(subscriber);
+        }
+        Topic.Subscriber<T> previous = client.subscriptions.put(subId, subscriber);
+        if (previous != null) {
+            previous.topic.unsubscribe(previous); //the id was reused, the new subscription replaces the old one
+        }
+        if (clients.get(connectionId) != client) {
+            topic.unsubscribe(subscriber); //disconnected meanwhile, maybe by the replay itself
         }
     }
 
-    // method to get topic by subscription id for a specific client
-    public String getTopicBySubscriptionId(int connectionId, int subId) {
-        ConcurrentHashMap<String, Integer> clientSubscriptions = ClinetToTopic.get(connectionId);
-        if (clientSubscriptions != null) {
-            for (Map.Entry<String, Integer> entry : clientSubscriptions.entrySet()) {
-                if (entry.getValue().equals(subId)) {
-                    return entry.getKey();
-                }
-            }
+    public boolean unsubscribe(int connectionId, int subId) {
+        Client<T> client = clients.get(connectionId);
+        Topic.Subscriber<T> subscription = client != null ? client.subscriptions.remove(subId) : null;
+        if (subscription == null) {
+            return false;
         }
-        return null;
+        subscription.topic.unsubscribe(subscription);
+        return true;
+    }
+
+    /**
+     * @return true if the destination, or a pattern matching it, was ever subscribed to
+     */
+    public boolean isKnownDestination(String channel) {
+        return topics.match(channel).length > 0;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,331 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+
+/**
+ * An append only log of the messages sent to destinations, so that they survive a restart.
+ * the log is split into segment files of a fixed size, memory mapped, named after the offset of their first
+ * message. an offset is the number of the message in the log, every segment keeps a sparse index from offsets
+ * to positions in the file (one entry every {@link #INDEX_INTERVAL} bytes) to start reading near any offset.
+ * a record is: its length (int), the length of the destination (short), the destination, the encoded message
+ * (see {@link StompFrame#encodeTail}). a zero length marks the end of the written part of a segment.
+ * old segments are deleted by a background thread by total size and by age, appending never waits for it.
+ */
+public class Journal implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64L << 20; //64m
+    public static final long DEFAULT_RETENTION_BYTES = 1L << 30; //1g
+    public static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final int INDEX_INTERVAL = 1 << 12; //4k
+    private static final int RECORD_HEADER = Integer.BYTES + Short.BYTES;
+    private static final String SUFFIX = ".log";
+
+    private static class Segment {
+        final long baseOffset;
+        final Path path;
+        final MappedByteBuffer buffer;
+        // the sparse index: offsets (relative to the base) and the positions of their records
+        final int[] indexOffsets;
+        final int[] indexPositions;
+        volatile int indexCount = 0;
+        volatile int size = 0; //bytes written, everything before it can be read without the lock
+        volatile long endOffset; //the offset the next record of this segment would get
+        volatile int lastPosition = -1; //the position of the newest record, -1 while there is none
+        volatile long lastAppend;
+
+        Segment(long baseOffset, Path path, MappedByteBuffer buffer) {
+            this.baseOffset = baseOffset;
+            this.path = path;
+            this.buffer = buffer;
+            this.endOffset = baseOffset;
+            int maxEntries = buffer.capacity() / INDEX_INTERVAL + 1;
+            this.indexOffsets = new int[maxEntries];
+            this.indexPositions = new int[maxEntries];
+        }
+
+        // called with the lock held (or before the segment is shared), after the record is written
+        void appended(int position, int length) {
+            int count = indexCount;
+            if (count == 0 || position - indexPositions[count - 1] >= INDEX_INTERVAL) {
+                indexOffsets[count] = (int) (endOffset - baseOffset);
+                indexPositions[count] = position;
+                indexCount = count + 1;
+            }
+            endOffset++;
+            lastPosition = position;
+            size = position + length;
+        }
+
+        // the position of a record at or before the offset, and its offset
+        long[] seek(long offset) {
+            int low = 0, high = indexCount - 1, found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (baseOffset + indexOffsets[mid] <= offset) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found < 0 ? new long[]{0, baseOffset}
+                    : new long[]{indexPositions[found], baseOffset + indexOffsets[found]};
+        }
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final CopyOnWriteArrayList<Segment> segments = new CopyOnWriteArrayList<>();
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ScheduledExecutorService cleaner;
+    private Segment active;
+
+    /**
+     * opens the journal in the directory, reading the segments already there
+     */
+    public Journal(Path directory, long segmentSize, long retentionBytes, long retentionMillis) throws IOException {
+        if (segmentSize <= RECORD_HEADER || segmentSize > Integer.MAX_VALUE || retentionBytes <= 0 || retentionMillis <= 0) {
+            throw new IllegalArgumentException("invalid journal sizes");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(directory);
+        recover();
+        if (segments.isEmpty()) {
+            roll(0);
+        }
+        active = segments.get(segments.size() - 1);
+        cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "journal-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(this::deleteExpired, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public Journal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_RETENTION_BYTES, DEFAULT_RETENTION_MILLIS);
+    }
+
+    /**
+     * @return the offset the next message will get
+     */
+    public long getEndOffset() {
+        return segments.get(segments.size() - 1).endOffset;
+    }
+
+    /**
+     * @return the offset of the oldest message still kept
+     */
+    public long getStartOffset() {
+        return segments.get(0).baseOffset;
+    }
+
+    /**
+     * @return the newest message kept, as it was encoded (read only), null if the journal is empty
+     */
+    public ByteBuffer getLastMessage() {
+        List<Segment> snapshot = new ArrayList<>(segments);
+        for (int i = snapshot.size() - 1; i >= 0; i--) {
+            Segment segment = snapshot.get(i);
+            int position = segment.lastPosition;
+            if (position >= 0) {
+                ByteBuffer in = segment.buffer.duplicate();
+                int length = in.getInt(position);
+                in.limit(position + length).position(position + RECORD_HEADER + in.getShort(position + Integer.BYTES));
+                return in.slice().asReadOnlyBuffer();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * appends a message sent to the destination
+     * @param encoder encodes the message given its offset, called with the journal locked (so the messages
+     * are numbered in the order they are appended) and called again if the message moves to a new segment
+     * @return the encoded message, or null if it could not be written to the journal
+     */
+    public ByteBuffer append(String destination, LongFunction<ByteBuffer> encoder) {
+        byte[] name = destination.getBytes(StandardCharsets.UTF_8);
+        appendLock.lock();
+        try {
+            ByteBuffer tail = encoder.apply(active.endOffset);
+            int length = RECORD_HEADER + name.length + tail.remaining();
+            if (name.length > Short.MAX_VALUE || length + Integer.BYTES > segmentSize) {
+                return null; //would never fit in a segment
+            }
+            if (active.size + length + Integer.BYTES > segmentSize) { //keeping room for the end mark
+                active.buffer.force();
+                roll(active.endOffset);
+                active = segments.get(segments.size() - 1);
+                tail = encoder.apply(active.endOffset);
+            }
+            int position = active.size;
+            ByteBuffer out = active.buffer.duplicate();
+            out.position(position + Integer.BYTES);
+            out.putShort((short) name.length).put(name).put(tail.duplicate());
+            out.putInt(position, length); //the length last, a reader never sees half a record
+            active.lastAppend = System.currentTimeMillis();
+            active.appended(position, length);
+            return tail;
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return null;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * runs the action on the messages of the destination in the range, oldest first. messages older than the
+     * journal keeps are skipped. the buffers given to the action are read only views of the journal
+     * @return the offset after the last message read
+     */
+    public long replay(String destination, long fromOffset, long toOffset, Consumer<ByteBuffer> action) {
+        byte[] name = destination.getBytes(StandardCharsets.UTF_8);
+        List<Segment> snapshot = new ArrayList<>(segments);
+        long offset = fromOffset;
+        for (int i = 0; i < snapshot.size() && offset < toOffset; i++) {
+            Segment segment = snapshot.get(i);
+            if (segment.endOffset <= offset) {
+                continue;
+            }
+            long[] start = segment.seek(offset);
+            int position = (int) start[0];
+            long current = start[1];
+            int size = segment.size;
+            ByteBuffer in = segment.buffer.duplicate();
+            while (position < size && current < toOffset) {
+                int length = in.getInt(position);
+                if (current >= offset) {
+                    int nameLength = in.getShort(position + Integer.BYTES);
+                    int tailPosition = position + RECORD_HEADER + nameLength;
+                    if (sameName(in, position + RECORD_HEADER, name, nameLength)) {
+                        in.limit(position + length).position(tailPosition);
+                        action.accept(in.slice().asReadOnlyBuffer());
+                        in.limit(in.capacity());
+                    }
+                }
+                position += length;
+                current++;
+            }
+            offset = Math.max(offset, current);
+        }
+        return Math.max(offset, fromOffset);
+    }
+
+    @Override
+    public void close() {
+        cleaner.shutdownNow();
+        appendLock.lock();
+        try {
+            active.buffer.force();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private static boolean sameName(ByteBuffer in, int position, byte[] name, int length) {
+        if (length != name.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (in.get(position + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void roll(long baseOffset) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+        segments.add(new Segment(baseOffset, path, map(path)));
+    }
+
+    private MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize); //stays mapped after closing
+        }
+    }
+
+    // reading the segments left by the last run, finding where each one ends and rebuilding its index
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path path : files) {
+                paths.add(path);
+            }
+        }
+        paths.sort(null); //the names are zero padded offsets
+        for (Path path : paths) {
+            String fileName = path.getFileName().toString();
+            long baseOffset;
+            try {
+                baseOffset = Long.parseLong(fileName.substring(0, fileName.length() - SUFFIX.length()));
+            } catch (NumberFormatException ex) {
+                continue; //not a segment
+            }
+            if (Files.size(path) != segmentSize) {
+                System.out.println("Journal: skipping " + path + ", it was written with another segment size");
+                continue;
+            }
+            Segment segment = new Segment(baseOffset, path, map(path));
+            int position = 0;
+            int length;
+            while (position + Integer.BYTES <= segmentSize
+                    && (length = segment.buffer.getInt(position)) >= RECORD_HEADER
+                    && position + length <= segmentSize) {
+                segment.appended(position, length);
+                position += length;
+            }
+            segment.lastAppend = Files.getLastModifiedTime(path).toMillis();
+            segments.add(segment);
+        }
+    }
+
+    // deleting the oldest segments while the journal is too big or they are too old, never the active one
+    private void deleteExpired() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.size;
+        }
+        long oldest = System.currentTimeMillis() - retentionMillis;
+        while (segments.size() > 1) {
+            Segment first = segments.get(0);
+            if (total <= retentionBytes && first.lastAppend >= oldest) {
+                break;
+            }
+            segments.remove(0);
+            total -= first.size;
+            try {
+                // readers still holding the mapping keep it until they are done
+                Files.deleteIfExists(first.path);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
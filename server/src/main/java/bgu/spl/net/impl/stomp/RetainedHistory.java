@@ -0,0 +1,58 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * The last messages sent to a destination, kept so that a client subscribing late can get them.
+ * a fixed size ring of the encoded parts the messages share between subscribers (see {@link StompFrame#encodeTail}),
+ * so replaying a message costs no more than sending it live.
+ * publishing to the topic and subscribing to it with a replay hold the lock of the topic, so a new subscriber
+ * gets every message exactly once, either from the ring or live.
+ */
+public class RetainedHistory {
+
+    private final int[] messageIds;
+    private final ByteBuffer[] tails;
+    private long added = 0; //messages added so far, the next one goes to added % capacity
+
+    public RetainedHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("history capacity must be positive");
+        }
+        messageIds = new int[capacity];
+        tails = new ByteBuffer[capacity];
+    }
+
+    public int getCapacity() {
+        return tails.length;
+    }
+
+    /**
+     * adds a message, replacing the oldest one when the ring is full. the lock of the topic must be held
+     */
+    /*package*/ void add(int messageId, ByteBuffer tail) {
+        int index = (int) (added % tails.length);
+        messageIds[index] = messageId;
+        tails[index] = tail;
+        added++;
+    }
+
+    /**
+     * runs the action on the retained messages, oldest first. the lock of the topic must be held
+     * @param last at most that many of the newest messages, -1 for no limit
+     * @param sinceMessageId only the messages with a greater message id, -1 for no limit
+     */
+    /*package*/ void forEach(int last, long sinceMessageId, Consumer<ByteBuffer> action) {
+        long count = Math.min(added, tails.length);
+        if (last >= 0) {
+            count = Math.min(count, last);
+        }
+        for (long i = added - count; i < added; i++) {
+            int index = (int) (i % tails.length);
+            if (messageIds[index] > sinceMessageId) {
+                action.accept(tails[index]);
+            }
+        }
+    }
+}
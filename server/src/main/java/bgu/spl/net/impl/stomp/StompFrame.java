@@ -0,0 +1,368 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A single STOMP frame: a command, its headers and a body.
+ * headers are kept as a flat array of key/value pairs (frames rarely have more than a handful)
+ * and the body is a slice of the bytes the frame was parsed from, so it is never copied.
+ * an outgoing frame may also end with an already encoded part shared with other frames (see {@link #encodeTail}),
+ * or be several frames written to the client together (see {@link #batch}).
+ */
+public class StompFrame {
+
+    public enum Command {
+        CONNECT, STOMP, SEND, SUBSCRIBE, UNSUBSCRIBE, ACK, NACK, BEGIN, COMMIT, ABORT, DISCONNECT,
+        CONNECTED, MESSAGE, RECEIPT, ERROR, UNKNOWN;
+
+        private final byte[] bytes = name().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // header names we expect from clients, matched against the raw bytes so they are never allocated
+    private static final String[] KNOWN_HEADERS = {
+        "accept-version", "host", "login", "passcode", "heart-beat", "destination", "id", "receipt",
+        "ack", "transaction", "content-type", "content-length", "message-id", "subscription",
+        "history", "history-since", "journal-offset"
+    };
+    private static final byte[][] KNOWN_HEADER_BYTES = new byte[KNOWN_HEADERS.length][];
+    static {
+        for (int i = 0; i < KNOWN_HEADERS.length; i++) {
+            KNOWN_HEADER_BYTES[i] = KNOWN_HEADERS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Command command;
+    private final String unknownCommand; // the raw command line, only kept when it is not recognized
+    private final String[] headers; // key, value, key, value ...
+    private final int headersLength;
+    private final byte[] body;
+    private final int bodyOffset;
+    private final int bodyLength;
+    private final ByteBuffer encodedTail; // read only, null unless the frame was created by withEncodedTail
+    private final StompFrame[] batch; // null unless the frame was created by batch
+
+    private StompFrame(Command command, String unknownCommand, String[] headers, int headersLength,
+            byte[] body, int bodyOffset, int bodyLength, ByteBuffer encodedTail) {
+        this(command, unknownCommand, headers, headersLength, body, bodyOffset, bodyLength, encodedTail, null);
+    }
+
+    private StompFrame(Command command, String unknownCommand, String[] headers, int headersLength,
+            byte[] body, int bodyOffset, int bodyLength, ByteBuffer encodedTail, StompFrame[] batch) {
+        this.command = command;
+        this.unknownCommand = unknownCommand;
+        this.headers = headers;
+        this.headersLength = headersLength;
+        this.body = body;
+        this.bodyOffset = bodyOffset;
+        this.bodyLength = bodyLength;
+        this.encodedTail = encodedTail;
+        this.batch = batch;
+    }
+
+    /**
+     * creates an outgoing frame with an empty body
+     * @param headers header keys and values, alternating
+     */
+    public static StompFrame of(Command command, String... headers) {
+        return withBody(command, EMPTY, 0, 0, headers);
+    }
+
+    /**
+     * creates an outgoing frame with a text body
+     * @param headers header keys and values, alternating
+     */
+    public static StompFrame withBody(Command command, String body, String... headers) {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        return withBody(command, bytes, 0, bytes.length, headers);
+    }
+
+    /**
+     * creates an outgoing frame whose body is a slice of the given bytes (which are not copied)
+     * @param headers header keys and values, alternating
+     */
+    public static StompFrame withBody(Command command, byte[] body, int offset, int length, String... headers) {
+        return new StompFrame(command, null, headers, headers.length, body, offset, length, null);
+    }
+
+    /**
+     * Encodes the given headers, the body and the terminating null character once, so that many frames can
+     * end with them (see {@link #withEncodedTail}). the result is a read only direct buffer, writing it to a
+     * socket does not copy it again.
+     * @param headers header keys and values, alternating
+     */
+    public static ByteBuffer encodeTail(byte[] body, int offset, int length, String... headers) {
+        byte[] tail = encode(null, headers, headers.length, body, offset, length, true);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(tail.length);
+        buffer.put(tail).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * creates an outgoing frame made of its own command and headers followed by a shared encoded tail
+     * @param encodedTail a buffer returned by {@link #encodeTail}, it is never modified
+     * @param headers header keys and values, alternating
+     */
+    public static StompFrame withEncodedTail(Command command, ByteBuffer encodedTail, String... headers) {
+        return new StompFrame(command, null, headers, headers.length, EMPTY, 0, 0, encodedTail);
+    }
+
+    /**
+     * creates an outgoing frame made of several frames, written to the client in order as a single message.
+     * it has the command of the first frame and no headers of its own
+     */
+    public static StompFrame batch(StompFrame... frames) {
+        return new StompFrame(frames[0].command, null, new String[0], 0, EMPTY, 0, 0, null, frames);
+    }
+
+    /**
+     * Parses a frame in a single pass. the frame keeps a reference to the given bytes for its body,
+     * so the caller must not reuse them.
+     * @param bytes the frame bytes, without the terminating null character
+     */
+    public static StompFrame parse(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        int pos = offset;
+        // skipping end of lines left over before the frame (heart-beats)
+        while (pos < end && (bytes[pos] == '\n' || bytes[pos] == '\r')) {
+            pos++;
+        }
+
+        int lineEnd = indexOfNewLine(bytes, pos, end);
+        int commandStart = skipSpaces(bytes, pos, lineEnd);
+        int commandEnd = trimSpaces(bytes, commandStart, lineEnd);
+        Command command = Command.UNKNOWN;
+        for (Command candidate : Command.values()) {
+            if (equals(bytes, commandStart, commandEnd, candidate.bytes)) {
+                command = candidate;
+                break;
+            }
+        }
+        String unknownCommand = command == Command.UNKNOWN
+                ? new String(bytes, commandStart, commandEnd - commandStart, StandardCharsets.UTF_8)
+                : null;
+        String[] headers = new String[8];
+        int headersLength = 0;
+        pos = lineEnd + 1;
+
+        // headers, until the first empty line
+        while (pos < end) {
+            lineEnd = indexOfNewLine(bytes, pos, end);
+            int lineStart = skipSpaces(bytes, pos, lineEnd);
+            int lineStop = trimSpaces(bytes, lineStart, lineEnd);
+            pos = lineEnd + 1;
+            if (lineStart == lineStop) {
+                break; // end of headers and start of body
+            }
+            int colon = lineStart;
+            while (colon < lineStop && bytes[colon] != ':') {
+                colon++;
+            }
+            if (colon == lineStop) {
+                continue; // not a header line
+            }
+            String name = headerName(bytes, lineStart, trimSpaces(bytes, lineStart, colon));
+            if (indexOfHeader(headers, headersLength, name) != -1) {
+                continue; // as the spec says, only the first occurrence of a repeated header is used
+            }
+            if (headersLength == headers.length) {
+                headers = Arrays.copyOf(headers, headersLength * 2);
+            }
+            int valueStart = skipSpaces(bytes, colon + 1, lineStop);
+            headers[headersLength++] = name;
+            headers[headersLength++] = new String(bytes, valueStart, lineStop - valueStart, StandardCharsets.UTF_8);
+        }
+
+        // the body is whatever is left, without surrounding white spaces
+        int bodyStart = skipSpaces(bytes, Math.min(pos, end), end);
+        int bodyEnd = trimSpaces(bytes, bodyStart, end);
+        return new StompFrame(command, unknownCommand, headers, headersLength, bytes, bodyStart, bodyEnd - bodyStart, null);
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the command as it was received, useful for reporting unknown commands
+     */
+    public String getCommandName() {
+        return unknownCommand != null ? unknownCommand : command.name();
+    }
+
+    /**
+     * @return the value of the first header with the given name, or null if there is no such header
+     */
+    public String getHeader(String name) {
+        int index = indexOfHeader(headers, headersLength, name);
+        return index == -1 ? null : headers[index + 1];
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public int getBodyOffset() {
+        return bodyOffset;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    public String getBodyAsString() {
+        return new String(body, bodyOffset, bodyLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the frame in its wire format, including the terminating null character
+     */
+    public byte[] toBytes() {
+        if (batch != null) {
+            byte[][] encoded = new byte[batch.length][];
+            int size = 0;
+            for (int i = 0; i < batch.length; i++) {
+                encoded[i] = batch[i].toBytes();
+                size += encoded[i].length;
+            }
+            byte[] result = new byte[size];
+            int pos = 0;
+            for (byte[] frame : encoded) {
+                pos = put(result, pos, frame);
+            }
+            return result;
+        }
+        if (encodedTail == null) {
+            return encode(command.bytes, headers, headersLength, body, bodyOffset, bodyLength, true);
+        }
+        byte[] head = encode(command.bytes, headers, headersLength, EMPTY, 0, 0, false);
+        byte[] result = Arrays.copyOf(head, head.length + encodedTail.remaining());
+        encodedTail.duplicate().get(result, head.length, encodedTail.remaining());
+        return result;
+    }
+
+    /**
+     * @return the frame in its wire format as buffers to be written in order, a shared encoded tail is
+     * returned as its own view and is not copied
+     */
+    public ByteBuffer[] toBuffers() {
+        if (batch != null) {
+            ByteBuffer[][] buffers = new ByteBuffer[batch.length][];
+            int count = 0;
+            for (int i = 0; i < batch.length; i++) {
+                buffers[i] = batch[i].toBuffers();
+                count += buffers[i].length;
+            }
+            ByteBuffer[] result = new ByteBuffer[count];
+            int pos = 0;
+            for (ByteBuffer[] frame : buffers) {
+                System.arraycopy(frame, 0, result, pos, frame.length);
+                pos += frame.length;
+            }
+            return result;
+        }
+        if (encodedTail == null) {
+            return new ByteBuffer[]{ByteBuffer.wrap(toBytes())};
+        }
+        return new ByteBuffer[]{
+            ByteBuffer.wrap(encode(command.bytes, headers, headersLength, EMPTY, 0, 0, false)),
+            encodedTail.duplicate()
+        };
+    }
+
+    /**
+     * encodes the command line (unless commandBytes is null) and the header lines,
+     * and when complete is set also the empty line, the body and the terminating null character
+     */
+    private static byte[] encode(byte[] commandBytes, String[] headers, int headersLength,
+            byte[] body, int bodyOffset, int bodyLength, boolean complete) {
+        byte[][] encodedHeaders = new byte[headersLength][];
+        int size = commandBytes != null ? commandBytes.length + 1 : 0;
+        if (complete) {
+            size += 1 + bodyLength + 1;
+        }
+        for (int i = 0; i < headersLength; i++) {
+            encodedHeaders[i] = headers[i].getBytes(StandardCharsets.UTF_8);
+            size += encodedHeaders[i].length + 1; // ':' after a key, '\n' after a value
+        }
+
+        byte[] result = new byte[size];
+        int pos = 0;
+        if (commandBytes != null) {
+            pos = put(result, pos, commandBytes);
+            result[pos++] = '\n';
+        }
+        for (int i = 0; i < headersLength; i += 2) {
+            pos = put(result, pos, encodedHeaders[i]);
+            result[pos++] = ':';
+            pos = put(result, pos, encodedHeaders[i + 1]);
+            result[pos++] = '\n';
+        }
+        if (complete) {
+            result[pos++] = '\n';
+            System.arraycopy(body, bodyOffset, result, pos, bodyLength);
+            result[pos + bodyLength] = '\u0000';
+        }
+        return result;
+    }
+
+    private static int indexOfHeader(String[] headers, int headersLength, String name) {
+        for (int i = 0; i < headersLength; i += 2) {
+            if (headers[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String headerName(byte[] bytes, int from, int to) {
+        for (int i = 0; i < KNOWN_HEADER_BYTES.length; i++) {
+            if (equals(bytes, from, to, KNOWN_HEADER_BYTES[i])) {
+                return KNOWN_HEADERS[i];
+            }
+        }
+        return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private static boolean equals(byte[] bytes, int from, int to, byte[] expected) {
+        if (to - from != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (bytes[from + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOfNewLine(byte[] bytes, int from, int to) {
+        while (from < to && bytes[from] != '\n') {
+            from++;
+        }
+        return from;
+    }
+
+    // same white spaces as String.trim
+    private static int skipSpaces(byte[] bytes, int from, int to) {
+        while (from < to && (bytes[from] & 0xff) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimSpaces(byte[] bytes, int from, int to) {
+        while (to > from && (bytes[to - 1] & 0xff) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private static int put(byte[] dest, int pos, byte[] src) {
+        System.arraycopy(src, 0, dest, pos, src.length);
+        return pos + src.length;
+    }
+}
@@ -1,28 +1,71 @@
 package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
-public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String> {
+public class StompMessageEncoderDecoder implements MessageEncoderDecoder<StompFrame> {
 
     private byte[] bytes = new byte[1 << 10]; //start with 1k
     private int len = 0;
 
     @Override
-    public String decodeNextByte(byte nextByte) {
+    public StompFrame decodeNextByte(byte nextByte) {
         //notice that the top 128 ascii characters have the same representation as their utf-8 counterparts
         //this allow us to do the following comparison
         if (nextByte == '\u0000') {
-            return popString();
+            return popFrame();
         }
         pushByte(nextByte);
         return null; //not a line yet
     }
 
     @Override
-    public byte[] encode(String message) {
-        return (message + "\u0000").getBytes(); //uses utf8 by default
+    public void decode(ByteBuffer buffer, Consumer<StompFrame> onMessage) {
+        while (buffer.hasRemaining()) {
+            int start = buffer.position();
+            int end = indexOfNull(buffer, start, buffer.limit());
+            if (end == -1) {
+                // no terminator yet, keep the partial frame for the next read
+                pushBytes(buffer, buffer.remaining());
+                return;
+            }
+
+            // the frame references its bytes for as long as it lives, while the buffer is reused for the next
+            // read (the reactor's are pooled direct buffers), so every frame is copied exactly once
+            StompFrame frame;
+            if (len == 0) {
+                // the whole frame is inside the buffer - copy it straight out, without the accumulator
+                byte[] frameBytes = new byte[end - start];
+                buffer.get(frameBytes);
+                frame = StompFrame.parse(frameBytes, 0, frameBytes.length);
+            } else {
+                pushBytes(buffer, end - start);
+                frame = popFrame();
+            }
+            buffer.get(); //skipping the terminator
+            onMessage.accept(frame);
+        }
+    }
+
+    @Override
+    public byte[] encode(StompFrame message) {
+        return message.toBytes();
+    }
+
+    @Override
+    public ByteBuffer[] encodeToBuffers(StompFrame message) {
+        return message.toBuffers();
+    }
+
+    private static int indexOfNull(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\u0000') {
+                return i;
+            }
+        }
+        return -1;
     }
 
     private void pushByte(byte nextByte) {
@@ -33,9 +76,18 @@ public class StompMessageEncoderDecoder implements MessageEncoderDecoder<String>
         bytes[len++] = nextByte;
     }
 
-    private String popString() {
-        
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
+    // copies the next count bytes of the buffer at once
+    private void pushBytes(ByteBuffer buffer, int count) {
+        if (len + count > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(len + count, len * 2));
+        }
+        buffer.get(bytes, len, count);
+        len += count;
+    }
+
+    private StompFrame popFrame() {
+        // the frame references its bytes, so it gets its own copy and the accumulator is reused
+        StompFrame result = StompFrame.parse(Arrays.copyOf(bytes, len), 0, len);
         len = 0;
         return result;
     }
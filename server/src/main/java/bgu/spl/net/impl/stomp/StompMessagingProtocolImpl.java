@@ -1,96 +1,134 @@
 package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.impl.stomp.StompFrame.Command;
 import bgu.spl.net.srv.Connections;
-import java.util.Map;
-import java.util.HashMap;
 
 import bgu.spl.net.impl.data.LoginStatus;
 import bgu.spl.net.impl.data.Database;
 
-public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class StompMessagingProtocolImpl implements StompMessagingProtocol<StompFrame> {
+
+    public static final int DEFAULT_MAX_TRANSACTIONS = 16;
+    public static final int DEFAULT_MAX_TRANSACTION_FRAMES = 1024;
+    public static final long DEFAULT_MAX_TRANSACTION_BYTES = 1L << 20; //1m
+
+    // the frames of an open transaction, in the order they came, and the bytes of their bodies
+    private static class Transaction {
+        final List<StompFrame> frames = new ArrayList<>();
+        long bytes = 0;
+    }
+
     private int connectionId;
-    private boolean shouldTerminate = false;
+    private volatile boolean shouldTerminate = false;
     private boolean loggedIn = false;
-    private Connections<String> connections;
+    private Connections<StompFrame> connections;
     private Database database;
     String username;
+    // the SEND, ACK and NACK frames of every open transaction, kept until it is committed or aborted
+    private final HashMap<String, Transaction> transactions = new HashMap<>();
+    // the most transactions open at once, and the most frames and body bytes each of them keeps
+    private final int maxTransactions;
+    private final int maxTransactionFrames;
+    private final long maxTransactionBytes;
+    // the most frames kept while the login is checked
+    private static final int MAX_FRAMES_DURING_LOGIN = 1024;
+    // the answer of a login may come on another thread, the lock keeps the frames processed one at a time
+    private final ReentrantLock lock = new ReentrantLock();
+    // the frames that came while the login was checked, processed in order once it is answered
+    private final ArrayDeque<StompFrame> framesDuringLogin = new ArrayDeque<>();
+    private boolean loginPending = false;
+    // true while processing outside of the connection handler, which then does not close the connection itself
+    private boolean outsideHandler = false;
+
+    public StompMessagingProtocolImpl(int maxTransactions, int maxTransactionFrames, long maxTransactionBytes) {
+        if (maxTransactions <= 0 || maxTransactionFrames <= 0 || maxTransactionBytes <= 0) {
+            throw new IllegalArgumentException("the transaction limits must be positive");
+        }
+        this.maxTransactions = maxTransactions;
+        this.maxTransactionFrames = maxTransactionFrames;
+        this.maxTransactionBytes = maxTransactionBytes;
+    }
+
+    public StompMessagingProtocolImpl() {
+        this(DEFAULT_MAX_TRANSACTIONS, DEFAULT_MAX_TRANSACTION_FRAMES, DEFAULT_MAX_TRANSACTION_BYTES);
+    }
 
     @Override
-    public void start(int connectionId, Connections<String> connections) {
+    public void start(int connectionId, Connections<StompFrame> connections) {
         this.connectionId = connectionId;
         this.connections = connections;
         this.database = Database.getInstance();
     }
 
     @Override
-    public void process(String message) {
-
-        // Spliting the message to commands strings array
-        String[] lines = message.split("\n");
-        if (lines.length == 0) {
-            sendError("Empty Message", "The received message is empty.", new HashMap<>()); // Just an empty map for
-                                                                                           // degenerate cases
-            return;
-        }
-        // Saving the first string command and using trim to delete unnecessary spaces
-        String command = lines[0].trim();
-
-        // Parsing headers into a map
-        Map<String, String> headers = new HashMap<>();
-        for (int i = 1; i < lines.length; i++) {
-            String line = lines[i].trim();
-            if (line.isEmpty()) {
-                break; // End of headers and start of body
-            }
-            String[] headerParts = line.split(":", 2);
-            if (headerParts.length == 2) {
-                headers.put(headerParts[0].trim(), headerParts[1].trim());
-            }
-        }
-
-        // Extracting body
-        int bodyStartIndex = -1;
-        for (int i = 1; i < lines.length; i++) {
-            if (lines[i].trim().isEmpty()) {
-                bodyStartIndex = i + 1;
-                break;
+    public void process(StompFrame frame) {
+        lock.lock();
+        try {
+            // Ignoring what comes after the connection was ended
+            if (shouldTerminate) {
+                return;
             }
-        }
-        String body = "";
-        if (bodyStartIndex != -1 && bodyStartIndex < lines.length) {
-            StringBuilder bodyBuilder = new StringBuilder();
-            for (int i = bodyStartIndex; i < lines.length; i++) {
-                // removing null characters from the body lines
-                String line = lines[i].replace("\u0000", "");
-                bodyBuilder.append(line);
-                if (i < lines.length - 1) {
-                    bodyBuilder.append("\n"); // Preserving line breaks in the body
+            // Keeping the frame until the login is answered
+            if (loginPending) {
+                if (framesDuringLogin.size() >= MAX_FRAMES_DURING_LOGIN) {
+                    sendError("Too Many Frames", "Too many frames were sent before the login was answered.", frame);
+                    framesDuringLogin.clear();
+                    return;
                 }
+                framesDuringLogin.add(frame);
+                return;
             }
-            body = bodyBuilder.toString().trim();
+            handle(frame);
+        } finally {
+            lock.unlock();
         }
+    }
 
+    private void handle(StompFrame frame) {
         // Handling commands
-        switch (command) {
-            case "CONNECT":
-                Connect(headers);
+        switch (frame.getCommand()) {
+            case CONNECT:
+            case STOMP:
+                Connect(frame);
+                break;
+            case SEND:
+                Send(frame);
+                break;
+            case SUBSCRIBE:
+                Subscribe(frame);
+                break;
+            case UNSUBSCRIBE:
+                Unsubscribe(frame);
                 break;
-            case "SEND":
-                Send(headers, body);
+            case ACK:
+                Ack(frame, true);
                 break;
-            case "SUBSCRIBE":
-                Subscribe(headers);
+            case NACK:
+                Ack(frame, false);
                 break;
-            case "UNSUBSCRIBE":
-                Unsubscribe(headers);
+            case BEGIN:
+                Begin(frame);
                 break;
-            case "DISCONNECT":
-                Disconnect(headers);
+            case COMMIT:
+                Commit(frame);
+                break;
+            case ABORT:
+                Abort(frame);
+                break;
+            case DISCONNECT:
+                Disconnect(frame);
                 break;
             default:
                 // Returning an error in a case of unknown command
-                sendError("Unknown Command", "The command " + command + " is not supported.", headers);
+                sendError("Unknown Command", "The command " + frame.getCommandName() + " is not supported.", frame);
                 break;
         }
     }
@@ -100,49 +138,84 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         return shouldTerminate;
     }
 
-    private void Connect(Map<String, String> headers) {
-        String acceptVersion = headers.get("accept-version");
-        String login = headers.get("login");
-        String passcode = headers.get("passcode");
+    private void Connect(StompFrame frame) {
+        String acceptVersion = frame.getHeader("accept-version");
+        String login = frame.getHeader("login");
+        String passcode = frame.getHeader("passcode");
         username = login;
 
         // First we check if the headers are valid
         if (login == null || passcode == null) {
-            sendError("Missing Headers", "One or more required headers are missing in the CONNECT frame.", headers);
+            sendError("Missing Headers", "One or more required headers are missing in the CONNECT frame.", frame);
             return;
         }
         if (acceptVersion == null || acceptVersion.contains("1.2") == false) {
-            sendError("Unsupported Version", "The server only supports STOMP version 1.2.", headers);
+            sendError("Unsupported Version", "The server only supports STOMP version 1.2.", frame);
+            return;
+        }
+        // Checking login status from the database and acting accordingly, without waiting if it asks the SQL server
+        CompletableFuture<LoginStatus> status = database.loginAsync(connectionId, login, passcode);
+        if (status.isDone()) {
+            loggedIn(status.join(), frame);
             return;
         }
-        // Checking login status from the database and acting accordingly
-        LoginStatus status = Database.getInstance().login(connectionId, login, passcode);
+        loginPending = true;
+        status.whenComplete((answer, error) -> loginAnswered(answer, error, frame));
+    }
+
+    // Answering the CONNECT frame, then processing the frames that came meanwhile
+    private void loginAnswered(LoginStatus status, Throwable error, StompFrame frame) {
+        lock.lock();
+        try {
+            loginPending = false;
+            outsideHandler = true;
+            if (error != null) {
+                sendError("Login Failed", "The login could not be checked, try again later.", frame);
+            } else {
+                loggedIn(status, frame);
+            }
+            while (!shouldTerminate && !framesDuringLogin.isEmpty()) {
+                handle(framesDuringLogin.poll());
+            }
+            framesDuringLogin.clear();
+        } finally {
+            outsideHandler = false;
+            lock.unlock();
+        }
+    }
+
+    private void loggedIn(LoginStatus status, StompFrame frame) {
         if (status == LoginStatus.CLIENT_ALREADY_CONNECTED || status == LoginStatus.ALREADY_LOGGED_IN) {
-            sendError("Already Connected", "User already logged in.", headers);
+            sendError("Already Connected", "User already logged in.", frame);
             return;
         } 
         if (status == LoginStatus.WRONG_PASSWORD) {
-             sendError("Wrong Password", "Password does not match.", headers);
+             sendError("Wrong Password", "Password does not match.", frame);
              return;
         }
         if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY || status == LoginStatus.ADDED_NEW_USER) {
+            // the connection may have closed while the login was checked
+            if (!((ConnectionsImpl<StompFrame>) connections).login(connectionId, username)) {
+                database.logout(connectionId);
+                this.shouldTerminate = true;
+                return;
+            }
             this.loggedIn = true;
-            this.username = login;
-            connections.send(connectionId, "CONNECTED\nsession-id:" + connectionId + "\n\n");
+            connections.send(connectionId, StompFrame.of(Command.CONNECTED, "session-id", String.valueOf(connectionId)));
             return;
         }
     }
 
-    private void Disconnect(Map<String, String> headers) {
+    private void Disconnect(StompFrame frame) {
         // Checking if the client is logged in
         if (loggedIn == false) {
-            sendError("Not Logged In", "You must be logged in to disconnect.", headers);
+            sendError("Not Logged In", "You must be logged in to disconnect.", frame);
             return;
         }
         // Sending receipt if present
-        String receiptId = headers.get("receipt");
+        String receiptId = frame.getHeader("receipt");
         if (receiptId != null) {
-            connections.send(connectionId, "RECEIPT\nreceipt-id:" + receiptId + "\n\n");
+            sendLast(StompFrame.of(Command.RECEIPT, "receipt-id", receiptId));
         }
         // Logging out from the database
         Database.getInstance().logout(connectionId);
@@ -152,119 +225,317 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
     }
 
-    private void Send(Map<String, String> headers, String body) {
+    private void Send(StompFrame frame) {
         // Checking if the client is logged in
         if (loggedIn == false) {
-            sendError("Not Logged In", "You must be logged in to send messages.", headers);
+            sendError("Not Logged In", "You must be logged in to send messages.", frame);
             return;
         }
         // Checking if the destination header is present
-        String destination = headers.get("destination");
+        String destination = frame.getHeader("destination");
         if (destination == null) {
-            sendError("Missing Destination", "The destination header is required.", headers);
+            sendError("Missing Destination", "The destination header is required.", frame);
+            return;
+        }
+        // Checking the destination is a single one, wildcards only match destinations when subscribing
+        if (TopicTree.isPattern(destination)) {
+            sendError("Invalid Destination", "Messages cannot be sent to a pattern: " + destination, frame);
             return;
         }
         // Checking if the client is subscribed to the destination 
-        ConnectionsImpl<String> impl = (ConnectionsImpl<String>) connections;
-        if (!impl.TopicToClient.containsKey(destination)) {
-            sendError("Not subscribed", "You are not subscribed to the destination: " + destination, headers);
+        ConnectionsImpl<StompFrame> impl = (ConnectionsImpl<StompFrame>) connections;
+        if (!impl.isKnownDestination(destination)) {
+            sendError("Not subscribed", "You are not subscribed to the destination: " + destination, frame);
+            return;
+        }
+        // Keeping the message until its transaction is committed
+        if (frame.getHeader("transaction") != null) {
+            addToTransaction(frame);
             return;
         }
         // Sending the message to all subscribers
-        connections.send(destination, body);
+        connections.send(destination, frame);
 
         // Sending receipt if present
-        String receiptId = headers.get("receipt");
+        String receiptId = frame.getHeader("receipt");
         if (receiptId != null) {
-            connections.send(connectionId, "RECEIPT\nreceipt-id:" + receiptId + "\n\n");
+            connections.send(connectionId, StompFrame.of(Command.RECEIPT, "receipt-id", receiptId));
         }
         // Tracking file upload in the database if applicable
         if (username != null && destination != null) {
-            database.trackFileUpload(username, body, destination);
+            database.trackFileUpload(username, frame.getBodyAsString(), destination);
         }
 
 
     }
 
-    private void Subscribe(Map<String, String> headers){
+    private void Subscribe(StompFrame frame){
       //Checking if the client is logged in
       if (loggedIn == false) {
-        sendError("Not Logged In", "You must be logged in to subscribe to topics.", headers);
+        sendError("Not Logged In", "You must be logged in to subscribe to topics.", frame);
         return;
       }
       //Checking if the required headers are present  
-      String destination = headers.get("destination");
-      String idStr = headers.get("id");
+      String destination = frame.getHeader("destination");
+      String idStr = frame.getHeader("id");
       if (destination == null || idStr == null) {
-        sendError("Missing Headers", "Both destination and id headers are required for SUBSCRIBE.", headers);
+        sendError("Missing Headers", "Both destination and id headers are required for SUBSCRIBE.", frame);
+        return;
+      }
+      //Checking if the client asked for the messages sent before it subscribed
+      int replayLast = 0;
+      long replaySince = -1;
+      String history = frame.getHeader("history");
+      String historySince = frame.getHeader("history-since");
+      try {
+        if (history != null) {
+          replayLast = history.equals("all") ? -1 : Integer.parseInt(history);
+          if (replayLast < -1 || (replayLast == -1 && !history.equals("all"))) {
+            throw new NumberFormatException(history);
+          }
+        }
+        if (historySince != null) {
+          replaySince = Long.parseLong(historySince);
+          if (history == null) {
+            replayLast = -1;
+          }
+        }
+      } catch (NumberFormatException e) {
+        sendError("Invalid History", "The history header must be a number or all, history-since a message id.", frame);
+        return;
+      }
+      //Checking if the client resumes from an offset of the journal, the offset of the first message it missed
+      long journalOffset = -1;
+      String resumeFrom = frame.getHeader("journal-offset");
+      if (resumeFrom != null) {
+        try {
+          journalOffset = Long.parseLong(resumeFrom);
+        } catch (NumberFormatException e) {
+          journalOffset = -1;
+        }
+        if (journalOffset < 0) {
+          sendError("Invalid Journal Offset", "The journal-offset header must be a non negative number.", frame);
+          return;
+        }
+      }
+      //Checking how the client acknowledges the messages
+      AckWindow.Mode ackMode = AckWindow.Mode.of(frame.getHeader("ack"));
+      if (ackMode == null) {
+        sendError("Invalid Ack Mode", "The ack header must be auto, client or client-individual.", frame);
         return;
       }
       //subscribing the client to the topic
       int subId;
       try {
         subId = Integer.parseInt(idStr);
-        connections.subscribe(connectionId, subId, destination);
+        ConnectionsImpl<StompFrame> impl = (ConnectionsImpl<StompFrame>) connections;
+        impl.subscribe(connectionId, subId, destination, replayLast, replaySince, journalOffset, ackMode);
       } catch (NumberFormatException e) {
-        sendError("Invalid Subscription ID", "The subscription id must be an integer.", headers);
+        sendError("Invalid Subscription ID", "The subscription id must be an integer.", frame);
         return;
       }
       //Sending receipt if present
-      String receiptId = headers.get("receipt");
+      String receiptId = frame.getHeader("receipt");
       if (receiptId != null) {  
-        connections.send(connectionId, "RECEIPT\nreceipt-id:" + receiptId + "\n\n");
+        connections.send(connectionId, StompFrame.of(Command.RECEIPT, "receipt-id", receiptId));
       }
     }
 
-    private void Unsubscribe(Map<String, String> headers) {
+    private void Unsubscribe(StompFrame frame) {
         // Checking if the client is logged in
         if (loggedIn == false) {
-            sendError("Not Logged In", "You must be logged in to unsubscribe from topics.", headers);
+            sendError("Not Logged In", "You must be logged in to unsubscribe from topics.", frame);
             return;
         }
         // Checking if the required headers are present
-        String idStr = headers.get("id");
+        String idStr = frame.getHeader("id");
         if (idStr == null) {
-            sendError("Missing Headers", "The id header is required for UNSUBSCRIBE.", headers);
+            sendError("Missing Headers", "The id header is required for UNSUBSCRIBE.", frame);
+            return;
         }
         // Unsubscribing the client from the topic
         int subId;
         try {
             subId = Integer.parseInt(idStr);
-            ConnectionsImpl<String> impl = (ConnectionsImpl<String>) connections;
-            String channel = impl.getTopicBySubscriptionId(connectionId, subId);
-            if (channel != null) {
-                connections.unsubscribe(connectionId, channel);
-            }
+            connections.unsubscribe(connectionId, subId);
         } catch (NumberFormatException e) {
-            sendError("Invalid Subscription ID", "The subscription id must be an integer.", headers);
+            sendError("Invalid Subscription ID", "The subscription id must be an integer.", frame);
             return;
         }
         // Sending receipt if present
-        String receiptId = headers.get("receipt");
+        String receiptId = frame.getHeader("receipt");
         if (receiptId != null) {
-            connections.send(connectionId, "RECEIPT\nreceipt-id:" + receiptId + "\n\n");
+            connections.send(connectionId, StompFrame.of(Command.RECEIPT, "receipt-id", receiptId));
         }
     }
 
-    // Sends an error message to the client
-    private void sendError(String message, String details, Map<String, String> headers) {
-        // Building the error message
-        StringBuilder sb = new StringBuilder();
-        sb.append("ERROR\n");
-        // Adding receipt id if present
-        String receiptId = headers.get("receipt");
+    private void Ack(StompFrame frame, boolean consumed) {
+        // Checking if the client is logged in
+        if (loggedIn == false) {
+            sendError("Not Logged In", "You must be logged in to acknowledge messages.", frame);
+            return;
+        }
+        // Checking if the required headers are present
+        String id = frame.getHeader("id");
+        if (id == null) {
+            sendError("Missing Headers", "The id header is required for " + frame.getCommandName() + ".", frame);
+            return;
+        }
+        // Keeping the acknowledgment until its transaction is committed
+        if (frame.getHeader("transaction") != null) {
+            addToTransaction(frame);
+            return;
+        }
+        // Acknowledging the message, or having it sent again
+        ConnectionsImpl<StompFrame> impl = (ConnectionsImpl<StompFrame>) connections;
+        if (!impl.acknowledge(connectionId, id, consumed)) {
+            sendError("Invalid Ack", "No message waiting for an acknowledgment has the id: " + id, frame);
+            return;
+        }
+        // Sending receipt if present
+        String receiptId = frame.getHeader("receipt");
         if (receiptId != null) {
-            sb.append("receipt-id:").append(receiptId).append("\n");
+            connections.send(connectionId, StompFrame.of(Command.RECEIPT, "receipt-id", receiptId));
+        }
+    }
+
+    private void Begin(StompFrame frame) {
+        // Checking if the client is logged in
+        if (loggedIn == false) {
+            sendError("Not Logged In", "You must be logged in to begin a transaction.", frame);
+            return;
+        }
+        String transaction = frame.getHeader("transaction");
+        if (transaction == null) {
+            sendError("Missing Headers", "The transaction header is required for BEGIN.", frame);
+            return;
+        }
+        if (transactions.containsKey(transaction)) {
+            sendError("Transaction Exists", "The transaction " + transaction + " has already begun.", frame);
+            return;
         }
-        // Adding message and details
-        sb.append("message:").append(message).append("\n");
-        sb.append(details).append("\n");
-        sb.append('\0');
+        if (transactions.size() >= maxTransactions) {
+            sendError("Too Many Transactions", "At most " + maxTransactions + " transactions may be open at once.",
+                    frame);
+            transactions.clear();
+            return;
+        }
+        transactions.put(transaction, new Transaction());
+        sendReceipt(frame);
+    }
+
+    private void Commit(StompFrame frame) {
+        List<StompFrame> frames = endTransaction(frame);
+        if (frames == null) {
+            return;
+        }
+        // Applying the frames in the order they were given, the messages of a run of SENDs to the same
+        // destination are sent together, so every subscriber gets the run in one write
+        List<StompFrame> run = new ArrayList<>();
+        String runDestination = null;
+        List<String> filenames = new ArrayList<>();
+        List<String> channels = new ArrayList<>();
+        ConnectionsImpl<StompFrame> impl = (ConnectionsImpl<StompFrame>) connections;
+        for (StompFrame sent : frames) {
+            String destination = sent.getCommand() == Command.SEND ? sent.getHeader("destination") : null;
+            if (!run.isEmpty() && !runDestination.equals(destination)) {
+                impl.send(runDestination, run);
+                run = new ArrayList<>();
+            }
+            if (destination != null) {
+                runDestination = destination;
+                run.add(sent);
+                filenames.add(sent.getBodyAsString());
+                channels.add(destination);
+            } else {
+                // an acknowledgment made stale meanwhile (e.g. by a cumulative one) is ignored
+                impl.acknowledge(connectionId, sent.getHeader("id"), sent.getCommand() == Command.ACK);
+            }
+        }
+        if (!run.isEmpty()) {
+            impl.send(runDestination, run);
+        }
+        sendReceipt(frame);
+        // Tracking the file uploads in the database at once
+        if (username != null && !filenames.isEmpty()) {
+            database.trackFileUploads(username, filenames, channels);
+        }
+    }
+
+    private void Abort(StompFrame frame) {
+        if (endTransaction(frame) != null) {
+            sendReceipt(frame);
+        }
+    }
+
+    // removes the transaction of a COMMIT or ABORT frame, or sends an error and returns null
+    private List<StompFrame> endTransaction(StompFrame frame) {
+        // Checking if the client is logged in
+        if (loggedIn == false) {
+            sendError("Not Logged In", "You must be logged in to end a transaction.", frame);
+            return null;
+        }
+        String transaction = frame.getHeader("transaction");
+        if (transaction == null) {
+            sendError("Missing Headers", "The transaction header is required for " + frame.getCommandName() + ".", frame);
+            return null;
+        }
+        Transaction ended = transactions.remove(transaction);
+        if (ended == null) {
+            sendError("Unknown Transaction", "No transaction " + transaction + " has begun.", frame);
+            return null;
+        }
+        return ended.frames;
+    }
+
+    private void addToTransaction(StompFrame frame) {
+        String transaction = frame.getHeader("transaction");
+        Transaction open = transactions.get(transaction);
+        if (open == null) {
+            sendError("Unknown Transaction", "No transaction " + transaction + " has begun.", frame);
+            return;
+        }
+        // the frame keeps its body until the transaction ends, so a transaction may only grow so much
+        if (open.frames.size() >= maxTransactionFrames || open.bytes + frame.getBodyLength() > maxTransactionBytes) {
+            sendError("Transaction Too Large", "A transaction may have at most " + maxTransactionFrames
+                    + " frames and " + maxTransactionBytes + " bytes of bodies.", frame);
+            transactions.clear();
+            return;
+        }
+        open.frames.add(frame);
+        open.bytes += frame.getBodyLength();
+        sendReceipt(frame);
+    }
+
+    // Sends a receipt if the frame asked for one
+    private void sendReceipt(StompFrame frame) {
+        String receiptId = frame.getHeader("receipt");
+        if (receiptId != null) {
+            connections.send(connectionId, StompFrame.of(Command.RECEIPT, "receipt-id", receiptId));
+        }
+    }
+
+    // Sends an error message to the client
+    private void sendError(String message, String details, StompFrame frame) {
+        // Building the error message, with the receipt id if present and the details as the body
+        String receiptId = frame.getHeader("receipt");
+        StompFrame error = receiptId != null
+                ? StompFrame.withBody(Command.ERROR, details, "receipt-id", receiptId, "message", message)
+                : StompFrame.withBody(Command.ERROR, details, "message", message);
         // Sending the error message
         if (connections != null)
-            connections.send(connectionId, sb.toString());
+            sendLast(error);
         // Terminating the connection
         this.shouldTerminate = true;
     }
 
+    // Sends the last frame of the connection, closing it after the frame when the handler will not
+    private void sendLast(StompFrame frame) {
+        if (outsideHandler) {
+            ((ConnectionsImpl<StompFrame>) connections).sendAndClose(connectionId, frame);
+        } else {
+            connections.send(connectionId, frame);
+        }
+    }
+
 }
\ No newline at end of file
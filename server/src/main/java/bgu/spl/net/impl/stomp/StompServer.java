@@ -3,15 +3,35 @@ import bgu.spl.net.srv.Reactor;
 import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.impl.stomp.StompMessagingProtocolImpl;
 import bgu.spl.net.impl.stomp.StompMessageEncoderDecoder;
+import bgu.spl.net.srv.OutboundLimits;
+import bgu.spl.net.srv.OutboundLimits.SlowConsumerPolicy;
 import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.VirtualThreads;
 import bgu.spl.net.impl.stomp.TCPServer;
+import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.impl.data.EmbeddedBackend;
+import bgu.spl.net.impl.data.ReportEngine;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class StompServer {
 
     public static void main(String[] args) {
-        // args like {port} ,{server type}
+        // args like {port} ,{server type} and then optional {option=value}
         if (args.length < 2) {
-            System.out.println("Usage: StompServer <port> <tpc|reactor>");
+            System.out.println("Usage: StompServer <port> <tpc|vtpc|reactor> [workers=<n>] [selectors=<n>]"
+                    + " [assign=<round-robin|least-loaded>] [highwater=<bytes>]"
+                    + " [policy=<drop-oldest|disconnect|pause-read>] [budget=<bytes>] [history=<messages>]"
+                    + " [journal=<directory>] [journal-segment=<bytes>] [journal-retention=<bytes>]"
+                    + " [journal-retention-time=<seconds>] [ack-window=<messages>]"
+                    + " [unacked-retention=<bytes>] [unacked-retention-time=<seconds>]"
+                    + " [transactions=<n>] [transaction-frames=<n>] [transaction-bytes=<bytes>]"
+                    + " [database=<sql|embedded>] [database-dir=<directory>] [database-snapshot-log=<bytes>]"
+                    + " [report-file=<file>] [report-topic=<destination>] [report-interval=<seconds>]"
+                    + " [report-cursor=<file>]");
             return;
         }
         
@@ -23,22 +43,200 @@ public class StompServer {
             return;
         }
         
+        // reactor threads: workers run the protocol, selectors do the io (0 - the main thread does it)
+        int workers = Runtime.getRuntime().availableProcessors();
+        int selectors = 0;
+        Reactor.LoopAssignment assignment = Reactor.LoopAssignment.ROUND_ROBIN;
+        // outbound limits, the defaults unless given as options
+        long highWaterMark = OutboundLimits.DEFAULT_HIGH_WATER_MARK;
+        SlowConsumerPolicy policy = SlowConsumerPolicy.DROP_OLDEST;
+        long globalBudget = OutboundLimits.DEFAULT_GLOBAL_BUDGET;
+        // messages every destination keeps for clients subscribing later
+        int historySize = 0;
+        // the journal keeping every message on disk, none unless a directory is given
+        String journalDirectory = null;
+        long segmentSize = Journal.DEFAULT_SEGMENT_SIZE;
+        long retentionBytes = Journal.DEFAULT_RETENTION_BYTES;
+        long retentionMillis = Journal.DEFAULT_RETENTION_MILLIS;
+        // unacknowledged messages a subscription in client or client-individual mode may have
+        int ackWindow = AckWindow.DEFAULT_CAPACITY;
+        // how much of what users did not acknowledge before disconnecting is kept for them, and for how long
+        long unackedRetentionBytes = UnacknowledgedMessages.DEFAULT_RETENTION_BYTES;
+        long unackedRetentionMillis = UnacknowledgedMessages.DEFAULT_RETENTION_MILLIS;
+        // the transactions a client may have open at once, and how much each of them may keep until it ends
+        int maxTransactions = StompMessagingProtocolImpl.DEFAULT_MAX_TRANSACTIONS;
+        int maxTransactionFrames = StompMessagingProtocolImpl.DEFAULT_MAX_TRANSACTION_FRAMES;
+        long maxTransactionBytes = StompMessagingProtocolImpl.DEFAULT_MAX_TRANSACTION_BYTES;
+        // where the users, logins and file uploads are kept, the SQL server unless the embedded database is chosen
+        boolean embeddedDatabase = false;
+        String databaseDirectory = "stomp_db";
+        long snapshotLogBytes = EmbeddedBackend.DEFAULT_SNAPSHOT_LOG_BYTES;
+        // reports of what was added to the database, to a file or a destination, none unless one is given
+        String reportFile = null;
+        String reportTopic = null;
+        long reportMillis = TimeUnit.MINUTES.toMillis(1);
+        String reportCursor = "report.cursor";
+        for (int i = 2; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            try {
+                if (option.length == 2 && option[0].equals("workers")) {
+                    workers = Integer.parseInt(option[1]);
+                } else if (option.length == 2 && option[0].equals("selectors")) {
+                    selectors = Integer.parseInt(option[1]);
+                } else if (option.length == 2 && option[0].equals("assign")) {
+                    assignment = Reactor.LoopAssignment.valueOf(option[1].toUpperCase().replace('-', '_'));
+                } else if (option.length == 2 && option[0].equals("highwater")) {
+                    highWaterMark = Long.parseLong(option[1]);
+                } else if (option.length == 2 && option[0].equals("policy")) {
+                    policy = SlowConsumerPolicy.valueOf(option[1].toUpperCase().replace('-', '_'));
+                } else if (option.length == 2 && option[0].equals("budget")) {
+                    globalBudget = Long.parseLong(option[1]);
+                } else if (option.length == 2 && option[0].equals("history")) {
+                    historySize = Integer.parseInt(option[1]);
+                } else if (option.length == 2 && option[0].equals("journal")) {
+                    journalDirectory = option[1];
+                } else if (option.length == 2 && option[0].equals("journal-segment")) {
+                    segmentSize = Long.parseLong(option[1]);
+                } else if (option.length == 2 && option[0].equals("journal-retention")) {
+                    retentionBytes = Long.parseLong(option[1]);
+                } else if (option.length == 2 && option[0].equals("journal-retention-time")) {
+                    retentionMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(option[1]));
+                } else if (option.length == 2 && option[0].equals("ack-window")) {
+                    ackWindow = Integer.parseInt(option[1]);
+                } else if (option.length == 2 && option[0].equals("unacked-retention")) {
+                    unackedRetentionBytes = Long.parseLong(option[1]);
+                } else if (option.length == 2 && option[0].equals("unacked-retention-time")) {
+                    unackedRetentionMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(option[1]));
+                } else if (option.length == 2 && option[0].equals("transactions")) {
+                    maxTransactions = Integer.parseInt(option[1]);
+                } else if (option.length == 2 && option[0].equals("transaction-frames")) {
+                    maxTransactionFrames = Integer.parseInt(option[1]);
+                } else if (option.length == 2 && option[0].equals("transaction-bytes")) {
+                    maxTransactionBytes = Long.parseLong(option[1]);
+                } else if (option.length == 2 && option[0].equals("database")) {
+                    if (!option[1].equals("sql") && !option[1].equals("embedded")) {
+                        throw new IllegalArgumentException(option[1]);
+                    }
+                    embeddedDatabase = option[1].equals("embedded");
+                } else if (option.length == 2 && option[0].equals("database-dir")) {
+                    databaseDirectory = option[1];
+                } else if (option.length == 2 && option[0].equals("database-snapshot-log")) {
+                    snapshotLogBytes = Long.parseLong(option[1]);
+                } else if (option.length == 2 && option[0].equals("report-file")) {
+                    reportFile = option[1];
+                } else if (option.length == 2 && option[0].equals("report-topic")) {
+                    reportTopic = option[1];
+                } else if (option.length == 2 && option[0].equals("report-interval")) {
+                    reportMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(option[1]));
+                } else if (option.length == 2 && option[0].equals("report-cursor")) {
+                    reportCursor = option[1];
+                } else {
+                    System.out.println("Unknown option: " + args[i]);
+                    return;
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println("Invalid value for option: " + args[i]);
+                return;
+            }
+        }
+        if (workers <= 0 || selectors < 0) {
+            System.out.println("Invalid number of threads");
+            return;
+        }
+        if (historySize < 0) {
+            System.out.println("Invalid history size");
+            return;
+        }
+        if (ackWindow <= 0) {
+            System.out.println("Invalid ack window");
+            return;
+        }
+        if (maxTransactions <= 0 || maxTransactionFrames <= 0 || maxTransactionBytes <= 0) {
+            System.out.println("Invalid transaction limits");
+            return;
+        }
+        OutboundLimits limits;
+        try {
+            limits = new OutboundLimits(highWaterMark, policy, globalBudget);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        Journal journal = null;
+        if (journalDirectory != null) {
+            try {
+                journal = new Journal(Paths.get(journalDirectory), segmentSize, retentionBytes, retentionMillis);
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Could not open the journal: " + e.getMessage());
+                return;
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(journal::close));
+        }
+        if (embeddedDatabase) {
+            try {
+                Database.setBackend(new EmbeddedBackend(Paths.get(databaseDirectory), snapshotLogBytes));
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Could not open the database: " + e.getMessage());
+                return;
+            }
+        }
+        ConnectionsImpl<StompFrame> connections = new ConnectionsImpl<>(limits, historySize, journal, ackWindow,
+                unackedRetentionBytes, unackedRetentionMillis);
+        if (reportFile != null && reportTopic != null) {
+            System.out.println("The reports go either to a file or to a destination");
+            return;
+        }
+        if (reportFile != null || reportTopic != null) {
+            try {
+                ReportEngine.Sink sink = reportTopic != null ? new TopicReportSink(connections, reportTopic)
+                        : new ReportEngine.FileSink(Paths.get(reportFile));
+                new ReportEngine(Database.getInstance()).schedule(sink, Paths.get(reportCursor), reportMillis);
+            } catch (IOException | IllegalArgumentException e) {
+                System.out.println("Could not start the reports: " + e.getMessage());
+                return;
+            }
+        }
+
+        final int transactions = maxTransactions;
+        final int transactionFrames = maxTransactionFrames;
+        final long transactionBytes = maxTransactionBytes;
+        Supplier<StompMessagingProtocol<StompFrame>> protocols =
+                () -> new StompMessagingProtocolImpl(transactions, transactionFrames, transactionBytes);
+
         String serverType = args[1];
-        Server<String> server;
+        Server<StompFrame> server;
 
         if(serverType.equals("tpc")){
         server = new TCPServer<>(port, 
-            () -> new StompMessagingProtocolImpl(), 
-            () -> new StompMessageEncoderDecoder());
+            protocols, 
+            () -> new StompMessageEncoderDecoder(),
+            connections,
+            Thread::new);
         server.serve();
         }
 
+        else if(serverType.equals("vtpc")){
+            // thread per client on virtual threads
+            if (!VirtualThreads.isSupported()) {
+                System.out.println("The vtpc server needs Java 21 or later");
+                return;
+            }
+            server = TCPServer.virtualThreadPerClient(port,
+                protocols,
+                () -> new StompMessageEncoderDecoder(),
+                connections);
+            server.serve();
+        }
+
         else if (serverType.equals("reactor")){
             server = new Reactor<>(
-                4,
+                workers,
                 port,
-                () -> new StompMessagingProtocolImpl(),
-                () -> new StompMessageEncoderDecoder());
+                protocols,
+                () -> new StompMessageEncoderDecoder(),
+                connections,
+                selectors,
+                assignment);
             server.serve();
         }
         else{
@@ -1,23 +1,51 @@
 package bgu.spl.net.impl.stomp;
 
+import java.util.concurrent.ThreadFactory;
 import java.util.function.Supplier;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.srv.BaseServer;
 import bgu.spl.net.srv.BlockingConnectionHandler;
+import bgu.spl.net.srv.VirtualThreads;
 
 public class TCPServer<T> extends BaseServer<T> {
 
+    // creates the thread of every client, platform threads unless given otherwise
+    private final ThreadFactory clientThreads;
+
+    public TCPServer(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            ConnectionsImpl<T> connections,
+            ThreadFactory clientThreads) {
+        super(port, protocolFactory, readerFactory, connections);
+        this.clientThreads = clientThreads;
+    }
+
     public TCPServer(
             int port,
             Supplier<StompMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
-        super(port, protocolFactory, readerFactory);
+        this(port, protocolFactory, readerFactory, new ConnectionsImpl<>(), Thread::new);
+    }
+
+    /**
+     * a server running every client on its own virtual thread, so idle clients cost a small heap
+     * object instead of a platform thread and its stack
+     */
+    public static <T> TCPServer<T> virtualThreadPerClient(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            ConnectionsImpl<T> connections) {
+        return new TCPServer<>(port, protocolFactory, readerFactory, connections,
+                VirtualThreads.factory("client-"));
     }
 
     @Override
     protected void execute(BlockingConnectionHandler<T> handler) {
-        new Thread(handler).start();
+        clientThreads.newThread(handler).start();
     }
-    
+
 }
@@ -0,0 +1,137 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ConnectionHandler;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A destination and the clients subscribed to it. the subscribers are kept in an array that is never
+ * modified, subscribing and unsubscribing replace it with a new one, so publishing is a plain scan of
+ * whatever array is current and takes no lock.
+ * a topic that keeps its messages (a history, the journal) is published to under its lock instead, so that a
+ * client subscribing with a replay gets every message once, either replayed or live.
+ */
+public class Topic<T> {
+
+    /**
+     * a subscription of one client to the topic
+     */
+    public static final class Subscriber<T> {
+        public final Topic<T> topic;
+        public final int connectionId;
+        public final ConnectionHandler<T> handler;
+        public final int subscriptionId;
+        public final String subscription; // the id as it is sent in the subscription header of every message
+        public final AckWindow window; // the messages the client did not acknowledge yet, null in auto mode
+        // tells apart the subscriptions reusing a subscription id, part of the ack ids of the messages
+        public final long generation;
+
+        Subscriber(Topic<T> topic, int connectionId, ConnectionHandler<T> handler, int subscriptionId,
+                AckWindow window, long generation) {
+            this.topic = topic;
+            this.connectionId = connectionId;
+            this.handler = handler;
+            this.subscriptionId = subscriptionId;
+            this.subscription = String.valueOf(subscriptionId);
+            this.window = window;
+            this.generation = generation;
+        }
+
+        Subscriber(Topic<T> topic, int connectionId, ConnectionHandler<T> handler, int subscriptionId) {
+            this(topic, connectionId, handler, subscriptionId, null, 0);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+    private final String name;
+    @SuppressWarnings("unchecked")
+    private final AtomicReference<Subscriber<T>[]> subscribers = new AtomicReference<>(NO_SUBSCRIBERS);
+    private final RetainedHistory history; // null unless the topic keeps its last messages
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public Topic(String name, int historySize) {
+        this.name = name;
+        this.history = historySize > 0 ? new RetainedHistory(historySize) : null;
+    }
+
+    public Topic(String name) {
+        this(name, 0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the last messages sent to the topic, or null if it does not keep them
+     */
+    public RetainedHistory getHistory() {
+        return history;
+    }
+
+    /*package*/ void lock() {
+        lock.lock();
+    }
+
+    /*package*/ void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * @return the current subscribers, the array must not be modified
+     */
+    public Subscriber<T>[] getSubscribers() {
+        return subscribers.get();
+    }
+
+    /**
+     * adds a subscription, a client may have several subscriptions to the same topic
+     * @return the subscription, to unsubscribe with
+     */
+    Subscriber<T> subscribe(int connectionId, ConnectionHandler<T> handler, int subscriptionId) {
+        return subscribe(new Subscriber<>(this, connectionId, handler, subscriptionId));
+    }
+
+    /**
+     * adds a subscription created for this topic, after it was sent what it missed
+     */
+    Subscriber<T> subscribe(Subscriber<T> subscriber) {
+        Subscriber<T>[] current, next;
+        do {
+            current = subscribers.get();
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = subscriber;
+        } while (!subscribers.compareAndSet(current, next));
+        return subscriber;
+    }
+
+    /**
+     * @return true if the subscription was still there
+     */
+    boolean unsubscribe(Subscriber<T> subscriber) {
+        Subscriber<T>[] current, next;
+        do {
+            current = subscribers.get();
+            int index = indexOf(current, subscriber);
+            if (index < 0) {
+                return false;
+            }
+            next = Arrays.copyOf(current, current.length - 1);
+            System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+        } while (!subscribers.compareAndSet(current, next));
+        return true;
+    }
+
+    private static int indexOf(Subscriber<?>[] subscribers, Subscriber<?> subscriber) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i] == subscriber) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
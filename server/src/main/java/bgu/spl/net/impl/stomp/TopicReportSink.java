@@ -0,0 +1,43 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.impl.data.ReportEngine;
+import bgu.spl.net.impl.stomp.StompFrame.Command;
+
+/**
+ * Publishes the reports of the database to a destination, for the clients subscribed to it.
+ * the lines are sent in messages of up to {@link #MESSAGE_SIZE} characters, a report ends its last message.
+ */
+public class TopicReportSink implements ReportEngine.Sink {
+
+    public static final int MESSAGE_SIZE = 16 * 1024;
+
+    private final ConnectionsImpl<StompFrame> connections;
+    private final String destination;
+    private final StringBuilder message = new StringBuilder();
+
+    public TopicReportSink(ConnectionsImpl<StompFrame> connections, String destination) {
+        if (TopicTree.isPattern(destination)) {
+            throw new IllegalArgumentException("the reports cannot be sent to a pattern: " + destination);
+        }
+        this.connections = connections;
+        this.destination = destination;
+    }
+
+    @Override
+    public void write(String line) {
+        message.append(line).append('\n');
+        if (message.length() >= MESSAGE_SIZE) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (message.length() == 0) {
+            return;
+        }
+        connections.send(destination, StompFrame.withBody(Command.SEND, message.toString(),
+                "destination", destination));
+        message.setLength(0);
+    }
+}
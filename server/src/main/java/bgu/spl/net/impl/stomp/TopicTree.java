@@ -0,0 +1,187 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The topics of the server by destination. destinations are split into segments on '/', a subscription
+ * destination may use "*" as a segment matching any one segment and "#" as a segment matching any number
+ * of segments (none included), e.g. /game/* gets the messages sent to every /game/a_b.
+ * exact destinations are kept in a map and patterns in a tree of segments. the topics matching a published
+ * destination are found once and cached, a new pattern only drops the cached destinations it matches.
+ * only exact destinations keep a history of their last messages.
+ */
+public class TopicTree<T> {
+
+    public static final String ANY_SEGMENT = "*";
+    public static final String ANY_SEGMENTS = "#";
+    private static final int MAX_CACHED_DESTINATIONS = 1 << 14;
+
+    @SuppressWarnings("rawtypes")
+    private static final Topic[] NO_TOPICS = new Topic[0];
+
+    /**
+     * a segment of the patterns, with the topic of the pattern ending here if there is one
+     */
+    private static class Node<T> {
+        final HashMap<String, Node<T>> children = new HashMap<>();
+        Node<T> anySegment;
+        Node<T> anySegments;
+        Topic<T> topic;
+    }
+
+    private final int historySize; // messages kept by every exact destination, 0 for none
+    private final ConcurrentHashMap<String, Topic<T>> exact = new ConcurrentHashMap<>();
+    private final Node<T> patterns = new Node<>();
+    private final ConcurrentHashMap<String, Topic<T>[]> matches = new ConcurrentHashMap<>();
+    // new topics are added under the write lock, so a match is never cached from a tree missing a topic
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public TopicTree(int historySize) {
+        this.historySize = historySize;
+    }
+
+    public TopicTree() {
+        this(0);
+    }
+
+    public static boolean isPattern(String destination) {
+        for (String segment : destination.split("/", -1)) {
+            if (segment.equals(ANY_SEGMENT) || segment.equals(ANY_SEGMENTS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the topic of the destination, exact or a pattern, created if nobody subscribed to it before
+     */
+    public Topic<T> getOrCreate(String destination) {
+        Topic<T> topic = exact.get(destination);
+        if (topic != null) {
+            return topic;
+        }
+        boolean pattern = isPattern(destination);
+        lock.writeLock().lock();
+        try {
+            if (!pattern) {
+                topic = exact.get(destination);
+                if (topic == null) {
+                    topic = new Topic<>(destination, historySize);
+                    exact.put(destination, topic);
+                    matches.remove(destination);
+                }
+                return topic;
+            }
+            Node<T> node = patterns;
+            for (String segment : destination.split("/", -1)) {
+                node = child(node, segment);
+            }
+            if (node.topic == null) {
+                node.topic = new Topic<>(destination);
+                String[] segments = destination.split("/", -1);
+                matches.keySet().removeIf(published -> matches(segments, 0, published.split("/", -1), 0));
+            }
+            return node.topic;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the topic of the exact destination, or null if nobody subscribed to it
+     */
+    public Topic<T> getExact(String destination) {
+        return exact.get(destination);
+    }
+
+    /**
+     * @return the topics getting the messages sent to the destination, the array must not be modified
+     */
+    public Topic<T>[] match(String destination) {
+        Topic<T>[] topics = matches.get(destination);
+        if (topics != null) {
+            return topics;
+        }
+        lock.readLock().lock();
+        try {
+            if (matches.size() >= MAX_CACHED_DESTINATIONS) {
+                matches.clear();
+            }
+            return matches.computeIfAbsent(destination, this::resolve);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Topic<T>[] resolve(String destination) {
+        List<Topic<T>> found = new ArrayList<>();
+        Topic<T> topic = exact.get(destination);
+        if (topic != null) {
+            found.add(topic);
+        }
+        collect(patterns, destination.split("/", -1), 0, found);
+        return found.isEmpty() ? NO_TOPICS : found.toArray(Arrays.copyOf(NO_TOPICS, found.size()));
+    }
+
+    private void collect(Node<T> node, String[] segments, int index, List<Topic<T>> found) {
+        if (node.anySegments != null) {
+            for (int i = index; i <= segments.length; i++) {
+                collect(node.anySegments, segments, i, found);
+            }
+        }
+        if (index == segments.length) {
+            if (node.topic != null && !found.contains(node.topic)) {
+                found.add(node.topic);
+            }
+            return;
+        }
+        Node<T> child = node.children.get(segments[index]);
+        if (child != null) {
+            collect(child, segments, index + 1, found);
+        }
+        if (node.anySegment != null) {
+            collect(node.anySegment, segments, index + 1, found);
+        }
+    }
+
+    private static <T> Node<T> child(Node<T> node, String segment) {
+        if (segment.equals(ANY_SEGMENT)) {
+            if (node.anySegment == null) {
+                node.anySegment = new Node<>();
+            }
+            return node.anySegment;
+        }
+        if (segment.equals(ANY_SEGMENTS)) {
+            if (node.anySegments == null) {
+                node.anySegments = new Node<>();
+            }
+            return node.anySegments;
+        }
+        return node.children.computeIfAbsent(segment, s -> new Node<>());
+    }
+
+    // does the pattern, from the given segment on, match the destination from the given segment on
+    private static boolean matches(String[] pattern, int p, String[] destination, int d) {
+        if (p == pattern.length) {
+            return d == destination.length;
+        }
+        if (pattern[p].equals(ANY_SEGMENTS)) {
+            for (int i = d; i <= destination.length; i++) {
+                if (matches(pattern, p + 1, destination, i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return d < destination.length
+                && (pattern[p].equals(ANY_SEGMENT) || pattern[p].equals(destination[d]))
+                && matches(pattern, p + 1, destination, d + 1);
+    }
+}
@@ -0,0 +1,123 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.OutboundLimits;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The messages users did not acknowledge before disconnecting, by user and destination, sent again when the
+ * user subscribes to the destination again.
+ * the kept bytes count against the budget of the server like queued ones. the oldest kept messages are
+ * forgotten first: once they are older than the retention time, while more than the retention bytes are kept,
+ * and while the server is over its budget.
+ */
+public class UnacknowledgedMessages {
+
+    public static final long DEFAULT_RETENTION_BYTES = 64L << 20; //64m
+    public static final long DEFAULT_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final class Kept {
+        final List<ByteBuffer> tails;
+        final long bytes;
+        final long keptAt;
+
+        Kept(List<ByteBuffer> tails, long keptAt) {
+            long bytes = 0;
+            for (ByteBuffer tail : tails) {
+                bytes += tail.remaining();
+            }
+            this.tails = tails;
+            this.bytes = bytes;
+            this.keptAt = keptAt;
+        }
+    }
+
+    private final OutboundLimits limits;
+    private final int maxMessages; // for every user and destination
+    private final long retentionBytes;
+    private final long retentionMillis;
+    // oldest first, a user disconnecting again moves its messages to the end
+    private final LinkedHashMap<String, Kept> kept = new LinkedHashMap<>();
+    private long keptBytes = 0;
+
+    /**
+     * @param maxMessages the most messages kept for a user and destination, the newest ones
+     */
+    public UnacknowledgedMessages(OutboundLimits limits, int maxMessages, long retentionBytes, long retentionMillis) {
+        if (maxMessages <= 0 || retentionBytes < 0 || retentionMillis < 0) {
+            throw new IllegalArgumentException("invalid retention of unacknowledged messages");
+        }
+        this.limits = limits;
+        this.maxMessages = maxMessages;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * keeps the messages after the ones already kept for the user and destination
+     */
+    public synchronized void keep(String username, String destination, List<ByteBuffer> tails) {
+        String key = key(username, destination);
+        Kept previous = remove(key);
+        List<ByteBuffer> merged = new ArrayList<>(previous != null ? previous.tails : List.of());
+        merged.addAll(tails);
+        if (merged.size() > maxMessages) {
+            merged = new ArrayList<>(merged.subList(merged.size() - maxMessages, merged.size()));
+        }
+        Kept added = new Kept(merged, System.currentTimeMillis());
+        kept.put(key, added);
+        keptBytes += added.bytes;
+        limits.reserveKept(added.bytes);
+        evict();
+    }
+
+    /**
+     * @return the messages kept for the user and destination, oldest first, no longer kept. null if there are none
+     */
+    public synchronized List<ByteBuffer> take(String username, String destination) {
+        evict();
+        Kept taken = remove(key(username, destination));
+        return taken != null ? taken.tails : null;
+    }
+
+    /**
+     * @return the number of bytes kept
+     */
+    public synchronized long getKeptBytes() {
+        return keptBytes;
+    }
+
+    private void evict() {
+        long expired = System.currentTimeMillis() - retentionMillis;
+        for (Iterator<Kept> it = kept.values().iterator(); it.hasNext(); ) {
+            Kept oldest = it.next();
+            if (oldest.keptAt > expired && keptBytes <= retentionBytes && !limits.isExhausted()) {
+                break;
+            }
+            it.remove();
+            released(oldest);
+        }
+    }
+
+    private Kept remove(String key) {
+        Kept removed = kept.remove(key);
+        if (removed != null) {
+            released(removed);
+        }
+        return removed;
+    }
+
+    private void released(Kept removed) {
+        keptBytes -= removed.bytes;
+        limits.releaseKept(removed.bytes);
+    }
+
+    private static String key(String username, String destination) {
+        return username + '\n' + destination;
+    }
+}
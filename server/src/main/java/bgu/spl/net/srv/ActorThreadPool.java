@@ -1,38 +1,30 @@
 package bgu.spl.net.srv;
 
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Runs the tasks of many actors on a few threads: the tasks of an actor run in the order they were
+ * submitted and never concurrently. every actor has its own lock free mailbox, submitting adds the
+ * task to the mailbox and schedules the mailbox if it is not scheduled already, nothing is shared
+ * between actors.
+ */
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
+    private static final int TASKS_PER_TURN = 32; //after that many tasks an actor gives the thread to others
+
     private final ExecutorService threads;
 
     public ActorThreadPool(int threads) {
         this.threads = Executors.newFixedThreadPool(threads);
-        acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
     }
 
-    public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
+    public void submit(Mailbox act, Runnable r) {
+        act.offer(r);
+        if (act.scheduled.compareAndSet(false, true)) {
+            execute(act);
         }
     }
 
@@ -40,39 +32,74 @@ public class ActorThreadPool {
         threads.shutdownNow();
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
-
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
-
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
-        }
-        return pendingRunnables;
-    }
-
-    private void execute(Runnable r, Object act) {
+    private void execute(Mailbox act) {
         threads.execute(() -> {
             try {
-                r.run();
+                for (int i = 0; i < TASKS_PER_TURN; i++) {
+                    Runnable r = act.poll();
+                    if (r == null) {
+                        break;
+                    }
+                    r.run();
+                }
             } finally {
                 complete(act);
             }
         });
     }
 
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
+    private void complete(Mailbox act) {
+        act.scheduled.set(false);
+        // a task added after the last poll found the flag still set, so it is up to us to schedule it
+        if (!act.isEmpty() && act.scheduled.compareAndSet(false, true)) {
+            execute(act);
+        }
+    }
+
+    /**
+     * The pending tasks of one actor, a multiple producers single consumer linked queue:
+     * producers swap the tail and then link the previous tail to the new node, the only consumer
+     * is whoever holds the scheduled flag.
+     */
+    public static class Mailbox {
+
+        private static class Node {
+            Runnable task;
+            volatile Node next;
+
+            Node(Runnable task) {
+                this.task = task;
             }
         }
+
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicReference<Node> tail;
+        private Node head; //a consumed node, the next one is the first pending task
+
+        public Mailbox() {
+            head = new Node(null);
+            tail = new AtomicReference<>(head);
+        }
+
+        private void offer(Runnable task) {
+            Node node = new Node(task);
+            tail.getAndSet(node).next = node;
+        }
+
+        private Runnable poll() {
+            Node next = head.next;
+            if (next == null) {
+                return null; //empty, or a producer is between swapping the tail and linking
+            }
+            head = next;
+            Runnable task = next.task;
+            next.task = null;
+            return task;
+        }
+
+        private boolean isEmpty() {
+            return tail.get() == head;
+        }
     }
 
 }
@@ -17,19 +17,27 @@ public abstract class BaseServer<T> implements Server<T> {
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
     private ServerSocket sock;
 
-    //adding filed to asign connection id and connections
-    private int connectionId = 0;
-    protected final ConnectionsImpl<T> connections = new ConnectionsImpl<>();
+    //the connections, they also give out the connection ids
+    protected final ConnectionsImpl<T> connections;
 
     public BaseServer(
             int port,
             Supplier<StompMessagingProtocol<T>> protocolFactory,
-            Supplier<MessageEncoderDecoder<T>> encdecFactory) {
+            Supplier<MessageEncoderDecoder<T>> encdecFactory,
+            ConnectionsImpl<T> connections) {
 
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.encdecFactory = encdecFactory;
 		this.sock = null;
+        this.connections = connections;
+    }
+
+    public BaseServer(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory) {
+        this(port, protocolFactory, encdecFactory, new ConnectionsImpl<>());
     }
 
     @Override
@@ -43,15 +51,23 @@ public abstract class BaseServer<T> implements Server<T> {
             while (!Thread.currentThread().isInterrupted()) {
 
                 Socket clientSock = serverSock.accept();
+                int currId;
+                try {
+                    currId = connections.newConnectionId();
+                } catch (IllegalStateException ex) {
+                    System.out.println("Refusing connection: " + ex.getMessage());
+                    clientSock.close();
+                    continue;
+                }
                 StompMessagingProtocol<T> protocol = protocolFactory.get();
                 MessageEncoderDecoder<T> encdec = encdecFactory.get();
-                int currId = connectionId++;
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
                         clientSock,
                         encdec,
                         protocol,
                         currId,
-                        connections);
+                        connections,
+                        connections.getOutboundLimits());
                 //adding connection id to the protocol
                 connections.connect(currId, handler);
                 //starting the protocal with the connection id and the connections , this is needed becuse of stomp
@@ -6,9 +6,21 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int BUFFER_SIZE = 1 << 13; //8k
+    // queued after the last message of a connection that closes once everything was written
+    private static final OutgoingMessage CLOSE = new OutgoingMessage(new ByteBuffer[0], false);
+
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
@@ -19,13 +31,34 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     private int connectionId =-1;
     private Connections<T> connections = null;
 
+    // the messages waiting to be written, the writer thread takes them and flushes once per batch
+    private final BlockingQueue<OutgoingMessage> writeQueue = new LinkedBlockingQueue<>();
+    private volatile Thread writer;
+    private final byte[] copyBuffer = new byte[BUFFER_SIZE]; //used only by the writer
 
-    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol , int connectionId  , Connections<T> connections) {
+    // outbound backpressure, bytes queued on this connection against the limits shared by the server
+    private final OutboundLimits limits;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // set by the first sendAndClose, nothing is queued after its message
+    private final AtomicBoolean closeWhenWritten = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    // not a monitor, a reader waiting on it should not pin a virtual thread
+    private final ReentrantLock pauseLock = new ReentrantLock();
+    private final Condition resumed = pauseLock.newCondition();
+    private volatile boolean readPaused = false;
+
+
+    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol , int connectionId  , Connections<T> connections, OutboundLimits limits) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = protocol;
         this.connectionId = connectionId;
         this.connections = connections;
+        this.limits = limits;
+    }
+
+    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol , int connectionId  , Connections<T> connections) {
+        this(sock, reader, protocol, connectionId, connections, new OutboundLimits());
     }
 
     // new leaner constractor so i wont break exsisting code
@@ -35,36 +68,252 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
     @Override
     public void run() {
-        try (Socket sock = this.sock) { //just for automatic closing
+        try {
             int read;
+            byte[] chunk = new byte[BUFFER_SIZE];
+            ByteBuffer buf = ByteBuffer.wrap(chunk);
 
             in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
+            out = new BufferedOutputStream(sock.getOutputStream(), BUFFER_SIZE);
+            startWriter();
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
-                    protocol.process(nextMessage);
-                }
+            while (!protocol.shouldTerminate() && connected && awaitResume() && (read = in.read(chunk)) >= 0) {
+                buf.limit(read).position(0);
+                encdec.decode(buf, nextMessage -> {
+                    if (!protocol.shouldTerminate()) {
+                        protocol.process(nextMessage);
+                    }
+                });
             }
 
         } catch (IOException ex) {
-            ex.printStackTrace();
+            if (connected) {
+                ex.printStackTrace();
+            }
         }
 
+        if (protocol.shouldTerminate() && writer != null) {
+            writeQueue.add(CLOSE); //the receipt of the disconnect is still on its way
+        } else {
+            closeQuietly();
+        }
     }
 
     @Override
     public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
         connected = false;
-        sock.close();
-        if(connections != null && connectionId != -1){
-            connections.disconnect(connectionId);
+        Thread writer = this.writer;
+        if (writer != null && writer != Thread.currentThread()) {
+            writer.interrupt();
+        }
+        resume();
+        try {
+            sock.close();
+        } finally {
+            dropPending(0, false); //giving back to the server budget what will never be written
+            if(connections != null && connectionId != -1){
+                connections.disconnect(connectionId);
+            }
         }
     }
 
     @Override
     public void send(T msg) {
-        //IMPLEMENT IF NEEDED
+        if (msg != null) {
+            enqueue(msg, false);
+        }
+    }
+
+    @Override
+    public boolean sendDroppable(T msg) {
+        if (msg == null) {
+            return true;
+        }
+        if (limits.isExhausted()) {
+            limits.dropped(1); //the whole server is over its budget, droppable messages are not queued
+            return true;
+        }
+        long queued = enqueue(msg, true);
+        if (queued <= limits.getHighWaterMark()) {
+            return true;
+        }
+        switch (limits.getPolicy()) {
+            case DROP_OLDEST:
+                dropPending(limits.getHighWaterMark(), true);
+                return true;
+            case PAUSE_READ:
+                readPaused = true;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void sendAndClose(T lastMsg, boolean keepPending) {
+        if (!closeWhenWritten.compareAndSet(false, true)) {
+            return; //only the first last message is sent
+        }
+        if (!keepPending) {
+            dropPending(0, false);
+        }
+        queue(lastMsg, false);
+        writeQueue.add(CLOSE);
+    }
+
+    @Override
+    public long getPendingBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * the writer runs on the same kind of thread as the reader, a virtual one in the vtpc server
+     */
+    private void startWriter() {
+        String name = "writer-" + connectionId;
+        if (VirtualThreads.isVirtual(Thread.currentThread())) {
+            writer = VirtualThreads.start(name, this::writeLoop);
+        } else {
+            writer = new Thread(this::writeLoop, name);
+            writer.start();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (connected) {
+                // writing everything queued so far into the buffered stream, and flushing once
+                boolean closeAfter = write(writeQueue.take());
+                OutgoingMessage next;
+                while (!closeAfter && (next = writeQueue.poll()) != null) {
+                    closeAfter = write(next);
+                }
+                out.flush();
+                if (readPaused && queuedBytes.get() <= limits.getHighWaterMark() / 2) {
+                    resume();
+                }
+                if (closeAfter) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            //the connection was closed while waiting for messages
+        } catch (IOException ex) {
+            if (connected) {
+                ex.printStackTrace();
+            }
+        }
+        closeQuietly();
+    }
+
+    /**
+     * @return true if it was the marker closing the connection
+     */
+    private boolean write(OutgoingMessage message) throws IOException {
+        if (message == CLOSE) {
+            return true;
+        }
+        if (!message.claim()) {
+            return false; //dropped while it was waiting
+        }
+        for (ByteBuffer buffer : message.buffers) {
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+            } else {
+                while (buffer.hasRemaining()) {
+                    int length = Math.min(buffer.remaining(), copyBuffer.length);
+                    buffer.get(copyBuffer, 0, length);
+                    out.write(copyBuffer, 0, length);
+                }
+            }
+        }
+        released(message.bytes);
+        return false;
+    }
+
+    /**
+     * queues the encoded message for the writer
+     * @return the number of bytes queued on this connection after adding the message
+     */
+    private long enqueue(T msg, boolean droppable) {
+        if (closeWhenWritten.get()) {
+            return queuedBytes.get(); //the connection is closing, nothing more is sent
+        }
+        return queue(msg, droppable);
+    }
+
+    // queues the message even after sendAndClose, unless the connection is closed already
+    private long queue(T msg, boolean droppable) {
+        if (!connected) {
+            return queuedBytes.get();
+        }
+        OutgoingMessage message = new OutgoingMessage(encdec.encodeToBuffers(msg), droppable);
+        limits.reserve(message.bytes);
+        long queued = queuedBytes.addAndGet(message.bytes);
+        writeQueue.add(message);
+        return queued;
+    }
+
+    /**
+     * drops queued messages that the writer did not take yet, oldest first, until at most the given number
+     * of bytes are queued
+     */
+    private void dropPending(long maxBytes, boolean onlyDroppable) {
+        int dropped = 0;
+        for (Iterator<OutgoingMessage> it = writeQueue.iterator(); it.hasNext() && queuedBytes.get() > maxBytes; ) {
+            OutgoingMessage message = it.next();
+            if (message != CLOSE && (message.droppable || !onlyDroppable) && message.drop()) {
+                it.remove();
+                released(message.bytes);
+                dropped++;
+            }
+        }
+        limits.dropped(dropped);
+    }
+
+    private void released(long bytes) {
+        queuedBytes.addAndGet(-bytes);
+        limits.release(bytes);
+    }
+
+    /**
+     * blocks the reader while reading is paused
+     * @return true if the connection is still open
+     */
+    private boolean awaitResume() {
+        if (!readPaused) {
+            return connected;
+        }
+        pauseLock.lock();
+        try {
+            while (readPaused && connected) {
+                resumed.awaitUninterruptibly();
+            }
+        } finally {
+            pauseLock.unlock();
+        }
+        return connected;
+    }
+
+    private void resume() {
+        pauseLock.lock();
+        try {
+            readPaused = false;
+            resumed.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
     }
 }
@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.io.IOException;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,39 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * sends a message the server may drop if the client falls behind, as set by {@link OutboundLimits}
+     * @return false if the client is over its high-water mark and should be disconnected
+     */
+    default boolean sendDroppable(T msg) {
+        send(msg);
+        return true;
+    }
+
+    /**
+     * discards the messages still waiting to be sent, sends the given one and closes the connection after it
+     */
+    default void sendAndClose(T lastMsg) {
+        sendAndClose(lastMsg, false);
+    }
+
+    /**
+     * sends the given message and closes the connection after it
+     * @param keepPending sends the messages still waiting before it instead of discarding them
+     */
+    default void sendAndClose(T lastMsg, boolean keepPending) {
+        send(lastMsg);
+        try {
+            close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return the number of bytes waiting to be written to the client
+     */
+    default long getPendingBytes() {
+        return 0;
+    }
+
 }
@@ -0,0 +1,63 @@
+package bgu.spl.net.srv;
+
+import java.util.Arrays;
+
+/**
+ * Hands out connection ids and takes them back once the connection is gone, so the ids stay dense no matter
+ * how many clients came and went. an id is a slot, its low bits, and the generation of the slot, its high bits.
+ * the generation changes every time the slot is given back, so an id kept by mistake after its connection
+ * closed does not name the next connection in the same slot.
+ */
+public class ConnectionIds {
+
+    public static final int SLOT_BITS = 20;
+    public static final int MAX_SLOTS = 1 << SLOT_BITS; //about a million connections at the same time
+    private static final int SLOT_MASK = MAX_SLOTS - 1;
+    private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1; //ids are never negative
+
+    private int[] generations = new int[64];
+    private int[] freeSlots = new int[64];
+    private int freeCount = 0;
+    private int nextSlot = 0; //slots above it were never used
+
+    /**
+     * @throws IllegalStateException if all the slots are taken
+     */
+    public synchronized int acquire() {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else if (nextSlot < MAX_SLOTS) {
+            slot = nextSlot++;
+            if (slot == generations.length) {
+                generations = Arrays.copyOf(generations, Math.min(generations.length * 2, MAX_SLOTS));
+            }
+        } else {
+            throw new IllegalStateException("too many connections");
+        }
+        return (generations[slot] << SLOT_BITS) | slot;
+    }
+
+    /**
+     * gives the id back, releasing an id that was already released does nothing
+     */
+    public synchronized void release(int id) {
+        int slot = slotOf(id);
+        if (slot >= nextSlot || generations[slot] != generationOf(id)) {
+            return;
+        }
+        generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+        if (freeCount == freeSlots.length) {
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    public static int slotOf(int id) {
+        return id & SLOT_MASK;
+    }
+
+    private static int generationOf(int id) {
+        return id >>> SLOT_BITS;
+    }
+}
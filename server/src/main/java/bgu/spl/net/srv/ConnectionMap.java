@@ -0,0 +1,102 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
+
+/**
+ * A map keyed by connection id, the ids from {@link ConnectionIds}. the value of an id is kept in the slot of
+ * the id, together with the whole id so the value of an older connection in the same slot is never returned.
+ * reads take no lock and no boxing, changes are rare (connecting, logging in, disconnecting) and are serialized.
+ */
+public class ConnectionMap<V> {
+
+    private static final class Entry<V> {
+        final int id;
+        final V value;
+
+        Entry(int id, V value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    private volatile AtomicReferenceArray<Entry<V>> entries = new AtomicReferenceArray<>(64);
+
+    public V get(int id) {
+        if (id < 0) {
+            return null;
+        }
+        AtomicReferenceArray<Entry<V>> entries = this.entries;
+        int slot = ConnectionIds.slotOf(id);
+        if (slot >= entries.length()) {
+            return null;
+        }
+        Entry<V> entry = entries.get(slot);
+        return entry != null && entry.id == id ? entry.value : null;
+    }
+
+    public boolean containsKey(int id) {
+        return get(id) != null;
+    }
+
+    /**
+     * @return the previous value of the id, or null
+     */
+    public synchronized V put(int id, V value) {
+        int slot = ConnectionIds.slotOf(id);
+        Entry<V> previous = ensureCapacity(slot).getAndSet(slot, new Entry<>(id, value));
+        return previous != null && previous.id == id ? previous.value : null;
+    }
+
+    /**
+     * @return the current value of the id, or null if the value was added
+     */
+    public synchronized V putIfAbsent(int id, V value) {
+        V current = get(id);
+        if (current == null) {
+            put(id, value);
+        }
+        return current;
+    }
+
+    /**
+     * @return the removed value, or null if the id had none
+     */
+    public synchronized V remove(int id) {
+        V current = get(id);
+        if (current != null) {
+            entries.set(ConnectionIds.slotOf(id), null);
+        }
+        return current;
+    }
+
+    /**
+     * runs the action with every id that has a value
+     */
+    public void forEachId(IntConsumer action) {
+        AtomicReferenceArray<Entry<V>> entries = this.entries;
+        for (int slot = 0; slot < entries.length(); slot++) {
+            Entry<V> entry = entries.get(slot);
+            if (entry != null) {
+                action.accept(entry.id);
+            }
+        }
+    }
+
+    private AtomicReferenceArray<Entry<V>> ensureCapacity(int slot) {
+        AtomicReferenceArray<Entry<V>> current = entries;
+        if (slot < current.length()) {
+            return current;
+        }
+        int length = current.length();
+        while (length <= slot) {
+            length *= 2;
+        }
+        AtomicReferenceArray<Entry<V>> grown = new AtomicReferenceArray<>(length);
+        for (int i = 0; i < current.length(); i++) {
+            grown.set(i, current.get(i));
+        }
+        entries = grown;
+        return grown;
+    }
+}
@@ -12,6 +12,9 @@ public interface Connections<T> {
 
     public void subscribe(int connectionId, int subId, String channel);
 
-    public void unsubscribe(int connectionId,String channel );
+    /**
+     * @return false if the client has no subscription with that id
+     */
+    public boolean unsubscribe(int connectionId, int subId);
 
 }
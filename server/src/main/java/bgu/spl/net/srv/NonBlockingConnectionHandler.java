@@ -7,19 +7,45 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
     private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final int MAX_WRITE_BUFFERS = 64; //buffers gathered into a single write call
+
+    // write statistics of all the connections, to compare write calls against written messages
+    private static final LongAdder WRITE_CALLS = new LongAdder();
+    private static final LongAdder WRITTEN_MESSAGES = new LongAdder();
 
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<OutgoingMessage> writeQueue = new ConcurrentLinkedQueue<>();
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final SelectorLoop loop; //the selector loop owning the channel
+    private final ActorThreadPool.Mailbox mailbox = new ActorThreadPool.Mailbox(); //the read tasks, run one at a time
+    // true while the connection is registered (or about to be) for OP_WRITE
+    private final AtomicBoolean writeInterest = new AtomicBoolean(false);
+    private ByteBuffer[] writeBatch = new ByteBuffer[MAX_WRITE_BUFFERS]; //used only by the selector thread
+    private final IntSupplier interestOps = this::interestOps;
+
+    // outbound backpressure, bytes queued on this connection against the limits shared by the server
+    private final OutboundLimits limits;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile boolean readPaused = false;
+    // set by the first sendAndClose, nothing is queued after its message
+    private final AtomicBoolean closing = new AtomicBoolean(false);
+    // set once the last message is queued, the connection closes when the queue is empty
+    private volatile boolean closeWhenWritten = false;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
 
     //adding connection id and connections
     private int connectionId =-1;
@@ -30,28 +56,21 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
             MessageEncoderDecoder<T> reader,
             StompMessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor,
+            SelectorLoop loop,
             int connectionId,
-            Connections<T> connections
+            Connections<T> connections,
+            OutboundLimits limits
         ) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
-        this.reactor = reactor;
+        this.loop = loop;
         this.connectionId = connectionId;
         this.connections = connections;
+        this.limits = limits;
 
     }
 
-    public NonBlockingConnectionHandler(
-            MessageEncoderDecoder<T> reader,
-            StompMessagingProtocol<T> protocol,
-            SocketChannel chan,
-            Reactor reactor
-    ) {
-        this(reader,protocol,chan,reactor,-1,null);
-    }
-
     public Runnable continueRead() {
         ByteBuffer buf = leaseBuffer();
 
@@ -66,15 +85,13 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
             buf.flip();
             return () -> {
                 try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                           protocol.process(nextMessage);
-                        }
-                    }
+                    encdec.decode(buf, protocol::process);
                 } finally {
                     releaseBuffer(buf);
                 }
+                if (protocol.shouldTerminate()) {
+                    wakeToClose(); //the last frame may have been written before the protocol terminated
+                }
             };
         } else {
             releaseBuffer(buf);
@@ -85,6 +102,10 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     }
 
     public void close() {
+        if (closed.compareAndSet(false, true)) {
+            loop.channelClosed();
+            dropPending(0, false); //giving back to the server budget what will never be written
+        }
         try {
             chan.close();
            
@@ -100,28 +121,88 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         return !chan.isOpen();
     }
 
+    /*package*/ ActorThreadPool.Mailbox getMailbox() {
+        return mailbox;
+    }
+
     public void continueWrite() {
         while (!writeQueue.isEmpty()) {
             try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
+                // gathering the buffers of as many queued messages as possible into one write call
+                int count = 0;
+                for (OutgoingMessage message : writeQueue) {
+                    if (count > 0 && count + message.buffers.length > writeBatch.length) {
+                        break;
+                    }
+                    if (!message.claim()) {
+                        continue; //dropped while it was waiting
+                    }
+                    if (message.buffers.length > writeBatch.length) {
+                        writeBatch = new ByteBuffer[message.buffers.length];
+                    }
+                    System.arraycopy(message.buffers, 0, writeBatch, count, message.buffers.length);
+                    count += message.buffers.length;
+                }
+                ByteBuffer last = null;
+                if (count > 0) { //otherwise everything that was queued got dropped
+                    last = writeBatch[count - 1];
+                    chan.write(writeBatch, 0, count);
+                    WRITE_CALLS.increment();
+                    Arrays.fill(writeBatch, 0, count, null);
+                }
+
+                // removing the messages that were fully written (or dropped)
+                OutgoingMessage top;
+                while ((top = writeQueue.peek()) != null && (top.isDropped() || top.isWritten())) {
+                    writeQueue.remove(top);
+                    if (!top.isDropped()) {
+                        released(top.bytes);
+                        WRITTEN_MESSAGES.increment();
+                    }
+                }
+                if (last != null && last.hasRemaining()) {
+                    break; //the socket is full, waiting for the next OP_WRITE
                 }
             } catch (IOException ex) {
                 ex.printStackTrace();
                 close();
+                return;
             }
         }
 
+        if (readPaused && queuedBytes.get() <= limits.getHighWaterMark() / 2) {
+            readPaused = false;
+            loop.updateInterestedOps(chan, interestOps);
+        }
         if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+            if (protocol.shouldTerminate() || closeWhenWritten) close();
+            else {
+                writeInterest.set(false);
+                if ((protocol.shouldTerminate() || closeWhenWritten) && writeQueue.isEmpty()) {
+                    // the last message was written before the connection was told to close, see wakeToClose
+                    close();
+                } else if (writeQueue.isEmpty() || !writeInterest.compareAndSet(false, true)) {
+                    // a message queued right before the flag was cleared still needs OP_WRITE
+                    loop.updateInterestedOps(chan, interestOps);
+                }
+            }
         }
     }
 
+    /**
+     * @return the number of write calls made by all the connections so far
+     */
+    public static long getWriteCalls() {
+        return WRITE_CALLS.sum();
+    }
+
+    /**
+     * @return the number of messages fully written by all the connections so far
+     */
+    public static long getWrittenMessages() {
+        return WRITTEN_MESSAGES.sum();
+    }
+
     private static ByteBuffer leaseBuffer() {
         ByteBuffer buff = BUFFER_POOL.poll();
         if (buff == null) {
@@ -139,9 +220,117 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     @Override
     public void send(T msg) {
         if (msg != null) {
-            writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-            reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            enqueue(msg, false);
+        }
+    }
+
+    @Override
+    public boolean sendDroppable(T msg) {
+        if (msg == null) {
+            return true;
+        }
+        if (limits.isExhausted()) {
+            limits.dropped(1); //the whole server is over its budget, droppable messages are not queued
+            return true;
+        }
+        long queued = enqueue(msg, true);
+        if (queued <= limits.getHighWaterMark()) {
+            return true;
+        }
+        switch (limits.getPolicy()) {
+            case DROP_OLDEST:
+                dropPending(limits.getHighWaterMark(), true);
+                return true;
+            case PAUSE_READ:
+                if (!readPaused) {
+                    readPaused = true;
+                    loop.updateInterestedOps(chan, interestOps);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void sendAndClose(T lastMsg, boolean keepPending) {
+        if (!closing.compareAndSet(false, true)) {
+            return; //only the first last message is sent
+        }
+        if (!keepPending) {
+            dropPending(0, false);
+        }
+        queue(lastMsg, false);
+        closeWhenWritten = true;
+        wakeToClose();
+    }
+
+    /**
+     * the selector may have written everything and cleared the write interest before the connection was told
+     * to close, it is asked for OP_WRITE again so it finds the empty queue and closes. if the interest is
+     * still set the selector checks again after clearing it
+     */
+    private void wakeToClose() {
+        if (writeInterest.compareAndSet(false, true)) {
+            loop.updateInterestedOps(chan, interestOps);
         }
-    
+    }
+
+    @Override
+    public long getPendingBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * queues the encoded message and asks for OP_WRITE if needed
+     * @return the number of bytes queued on this connection after adding the message
+     */
+    private long enqueue(T msg, boolean droppable) {
+        if (closing.get()) {
+            return queuedBytes.get(); //the connection is closing, nothing more is sent
+        }
+        return queue(msg, droppable);
+    }
+
+    // queues the message even after sendAndClose, unless the connection is closed already
+    private long queue(T msg, boolean droppable) {
+        if (closed.get()) {
+            return queuedBytes.get();
+        }
+        OutgoingMessage message = new OutgoingMessage(encdec.encodeToBuffers(msg), droppable);
+        limits.reserve(message.bytes);
+        long queued = queuedBytes.addAndGet(message.bytes);
+        writeQueue.add(message);
+        // waking the selector up only if the connection is not already waiting to write
+        if (writeInterest.compareAndSet(false, true)) {
+            loop.updateInterestedOps(chan, interestOps);
+        }
+        return queued;
+    }
+
+    /**
+     * drops queued messages that did not start being written, oldest first, until at most the given number
+     * of bytes are queued
+     */
+    private void dropPending(long maxBytes, boolean onlyDroppable) {
+        int dropped = 0;
+        for (Iterator<OutgoingMessage> it = writeQueue.iterator(); it.hasNext() && queuedBytes.get() > maxBytes; ) {
+            OutgoingMessage message = it.next();
+            if ((message.droppable || !onlyDroppable) && message.drop()) {
+                it.remove();
+                released(message.bytes);
+                dropped++;
+            }
+        }
+        limits.dropped(dropped);
+    }
+
+    private void released(long bytes) {
+        queuedBytes.addAndGet(-bytes);
+        limits.release(bytes);
+    }
+
+    private int interestOps() {
+        return (readPaused ? 0 : SelectionKey.OP_READ) | (writeInterest.get() ? SelectionKey.OP_WRITE : 0);
     }
 }
@@ -0,0 +1,103 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits on the bytes waiting to be written to clients, shared by all the connections of a server.
+ * every connection has a high-water mark, crossing it applies the slow consumer policy to that connection,
+ * and all the connections together have a budget, once it is used up droppable messages are not queued at all.
+ * messages kept for clients outside of the connections count against the budget too.
+ */
+public class OutboundLimits {
+
+    public enum SlowConsumerPolicy {
+        /** drops the oldest droppable messages queued for the client until it is back under the mark */
+        DROP_OLDEST,
+        /** sends the client an error and closes the connection */
+        DISCONNECT,
+        /** stops reading from the client until it is back under half the mark */
+        PAUSE_READ
+    }
+
+    public static final long DEFAULT_HIGH_WATER_MARK = 4L << 20; //4m per connection
+    public static final long DEFAULT_GLOBAL_BUDGET = 256L << 20; //256m for the whole server
+
+    private final long highWaterMark;
+    private final SlowConsumerPolicy policy;
+    private final long globalBudget;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final LongAdder droppedMessages = new LongAdder();
+
+    public OutboundLimits(long highWaterMark, SlowConsumerPolicy policy, long globalBudget) {
+        if (highWaterMark <= 0 || globalBudget <= 0) {
+            throw new IllegalArgumentException("outbound limits must be positive");
+        }
+        this.highWaterMark = highWaterMark;
+        this.policy = policy;
+        this.globalBudget = globalBudget;
+    }
+
+    public OutboundLimits() {
+        this(DEFAULT_HIGH_WATER_MARK, SlowConsumerPolicy.DROP_OLDEST, DEFAULT_GLOBAL_BUDGET);
+    }
+
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getGlobalBudget() {
+        return globalBudget;
+    }
+
+    /**
+     * @return the number of bytes queued on all the connections, and kept for clients outside of them
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return true if the whole server is at or over its budget
+     */
+    public boolean isExhausted() {
+        return queuedBytes.get() >= globalBudget;
+    }
+
+    /**
+     * @return the number of messages dropped so far, by any connection
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    /**
+     * counts bytes kept for clients outside of the connections against the budget
+     */
+    public void reserveKept(long bytes) {
+        reserve(bytes);
+    }
+
+    /**
+     * gives back to the budget bytes that {@link #reserveKept} counted
+     */
+    public void releaseKept(long bytes) {
+        release(bytes);
+    }
+
+    /*package*/ void reserve(long bytes) {
+        queuedBytes.addAndGet(bytes);
+    }
+
+    /*package*/ void release(long bytes) {
+        queuedBytes.addAndGet(-bytes);
+    }
+
+    /*package*/ void dropped(int messages) {
+        droppedMessages.add(messages);
+    }
+}
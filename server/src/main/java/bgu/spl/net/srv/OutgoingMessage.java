@@ -0,0 +1,43 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded message queued for a client, claimed either by the writer once it starts writing it
+ * or by a sender dropping it
+ */
+/*package*/ class OutgoingMessage {
+    private static final int QUEUED = 0, WRITING = 1, DROPPED = 2;
+
+    final ByteBuffer[] buffers;
+    final long bytes;
+    final boolean droppable;
+    private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+    OutgoingMessage(ByteBuffer[] buffers, boolean droppable) {
+        this.buffers = buffers;
+        this.droppable = droppable;
+        long bytes = 0;
+        for (ByteBuffer buffer : buffers) {
+            bytes += buffer.remaining();
+        }
+        this.bytes = bytes;
+    }
+
+    boolean claim() {
+        return state.get() == WRITING || state.compareAndSet(QUEUED, WRITING);
+    }
+
+    boolean drop() {
+        return state.compareAndSet(QUEUED, DROPPED);
+    }
+
+    boolean isDropped() {
+        return state.get() == DROPPED;
+    }
+
+    boolean isWritten() {
+        return state.get() == WRITING && (buffers.length == 0 || !buffers[buffers.length - 1].hasRemaining());
+    }
+}
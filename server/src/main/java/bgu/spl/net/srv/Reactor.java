@@ -9,145 +9,176 @@ import bgu.spl.net.api.StompMessagingProtocol;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
 
+    /**
+     * how new connections are spread between the selector loops
+     */
+    public enum LoopAssignment { ROUND_ROBIN, LEAST_LOADED }
+
     private final int port;
     private final Supplier<StompMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
-    private Selector selector;
-
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
-
-    //adding filed to asign connection id and connections
-    private int connectionId = 0;
-    protected final ConnectionsImpl<T> connections = new ConnectionsImpl<>();
-
+    private final int selectorThreads;
+    private final LoopAssignment assignment;
+
+    // the loop accepting connections, and the loops doing the io (the acceptor itself when there are no others)
+    private volatile SelectorLoop acceptor;
+    private volatile SelectorLoop[] loops = new SelectorLoop[0];
+    private int nextLoop = 0;
+
+    //the connections, they also give out the connection ids
+    protected final ConnectionsImpl<T> connections;
+
+    /**
+     * @param connections the connections of the server, with their outbound limits and topics
+     * @param selectorThreads number of selector loops doing the io of the connections, each on its own thread.
+     *                        with 0 the thread calling serve does both the accepting and the io
+     */
     public Reactor(
             int numThreads,
             int port,
             Supplier<StompMessagingProtocol<T>> protocolFactory,
-            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            ConnectionsImpl<T> connections,
+            int selectorThreads,
+            LoopAssignment assignment) {
 
         this.pool = new ActorThreadPool(numThreads);
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
+        this.connections = connections;
+        this.selectorThreads = selectorThreads;
+        this.assignment = assignment;
+    }
+
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            OutboundLimits limits) {
+        this(numThreads, port, protocolFactory, readerFactory, new ConnectionsImpl<>(limits), 0,
+                LoopAssignment.ROUND_ROBIN);
+    }
+
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(numThreads, port, protocolFactory, readerFactory, new OutboundLimits());
     }
 
     @Override
     public void serve() {
-	selectorThread = Thread.currentThread();
-        try (Selector selector = Selector.open();
-                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
-
-            this.selector = selector; //just to be able to close
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+
+            acceptor = new SelectorLoop(this, pool);
+            if (selectorThreads > 0) {
+                SelectorLoop[] ioLoops = new SelectorLoop[selectorThreads];
+                for (int i = 0; i < ioLoops.length; i++) {
+                    ioLoops[i] = new SelectorLoop(this, pool);
+                    Thread thread = new Thread(ioLoops[i], "selector-" + i);
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                loops = ioLoops;
+            } else {
+                loops = new SelectorLoop[]{acceptor};
+            }
 
             serverSock.bind(new InetSocketAddress(port));
             serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
+            acceptor.registerAcceptor(serverSock);
 			System.out.println("Server started");
 
-            while (!Thread.currentThread().isInterrupted()) {
+            acceptor.run();
 
-                selector.select();
-                runSelectionThreadTasks();
-
-                for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
-                    }
-                }
-
-                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
-
-            }
-
-        } catch (ClosedSelectorException ex) {
-            //do nothing - server was requested to be closed
         } catch (IOException ex) {
             //this is an error
             ex.printStackTrace();
         }
 
+        try {
+            closeLoops();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
         System.out.println("server closed!!!");
+        System.out.println("write calls: " + NonBlockingConnectionHandler.getWriteCalls()
+                + ", written messages: " + NonBlockingConnectionHandler.getWrittenMessages());
         pool.shutdown();
     }
 
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                key.interestOps(ops);
-            });
-            selector.wakeup();
-        }
-    }
-
-
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
+    /*package*/ void handleAccept(ServerSocketChannel serverChan) throws IOException {
         SocketChannel clientChan = serverChan.accept();
+        if (clientChan == null) {
+            return;
+        }
+        int currId;
+        try {
+            currId = connections.newConnectionId();
+        } catch (IllegalStateException ex) {
+            System.out.println("Refusing connection: " + ex.getMessage());
+            clientChan.close();
+            return;
+        }
         clientChan.configureBlocking(false);
+        SelectorLoop loop = chooseLoop();
 
         // preapare data
-        int currId = connectionId++;
         StompMessagingProtocol<T> protocol = protocolFactory.get();
         protocol.start(currId, connections);
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
                 readerFactory.get(),
                 protocol,
                 clientChan,
-                this,
+                loop,
                 currId,
-                connections);
+                connections,
+                connections.getOutboundLimits());
 
         
         connections.connect(currId, handler);
-        //starting the protocal with the connection id and the connections , this is needed becuse of stomp
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+        //the loop owns the channel from now on, all of its io is done by the loop thread
+        loop.register(clientChan, handler);
     }
 
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
-
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
+    private SelectorLoop chooseLoop() {
+        SelectorLoop[] loops = this.loops;
+        if (assignment == LoopAssignment.LEAST_LOADED) {
+            SelectorLoop least = loops[0];
+            for (SelectorLoop loop : loops) {
+                if (loop.getChannelCount() < least.getChannelCount()) {
+                    least = loop;
+                }
             }
+            return least;
         }
-
-	    if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
-        }
+        nextLoop = (nextLoop + 1) % loops.length;
+        return loops[nextLoop];
     }
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
+    private void closeLoops() throws IOException {
+        SelectorLoop acceptor = this.acceptor;
+        if (acceptor != null) {
+            acceptor.close();
+        }
+        for (SelectorLoop loop : loops) {
+            loop.close();
         }
     }
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        closeLoops();
         if(connections != null){
             connections.disconnectAll();
         }
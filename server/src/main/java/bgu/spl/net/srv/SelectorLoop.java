@@ -0,0 +1,147 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * A selector and the thread running it. the channels registered to a loop are read and written only by
+ * its thread, other threads ask for changes through tasks that the loop runs between selections.
+ */
+/*package*/ class SelectorLoop implements Runnable {
+
+    private final Reactor<?> reactor;
+    private final ActorThreadPool pool;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger channels = new AtomicInteger(0);
+    private volatile Thread selectorThread;
+
+    /*package*/ SelectorLoop(Reactor<?> reactor, ActorThreadPool pool) throws IOException {
+        this.reactor = reactor;
+        this.pool = pool;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                selector.select();
+                runSelectionThreadTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        reactor.handleAccept((ServerSocketChannel) key.channel());
+                    } else {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+
+            }
+        } catch (ClosedSelectorException ex) {
+            //do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        }
+    }
+
+    /*package*/ void registerAcceptor(ServerSocketChannel serverSock) throws IOException {
+        serverSock.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * registers a new client channel to this loop, from any thread
+     */
+    /*package*/ void register(SocketChannel chan, NonBlockingConnectionHandler<?> handler) {
+        channels.incrementAndGet();
+        execute(() -> {
+            try {
+                chan.register(selector, SelectionKey.OP_READ, handler);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                handler.close();
+            }
+        });
+    }
+
+    /*package*/ void channelClosed() {
+        channels.decrementAndGet();
+    }
+
+    /**
+     * @return the number of client channels currently owned by this loop
+     */
+    /*package*/ int getChannelCount() {
+        return channels.get();
+    }
+
+    /**
+     * sets the operations the channel is registered for, the ops are computed on the selector thread
+     * so that updates requested from different threads never apply a stale value
+     */
+    /*package*/ void updateInterestedOps(SocketChannel chan, IntSupplier ops) {
+        final SelectionKey key = chan.keyFor(selector);
+        if (key == null) {
+            return; //not registered (yet or anymore)
+        }
+        if (Thread.currentThread() == selectorThread) {
+            key.interestOps(ops.getAsInt());
+        } else {
+            selectorTasks.add(() -> {
+                if (key.isValid()) {
+                    key.interestOps(ops.getAsInt());
+                }
+            });
+            selector.wakeup();
+        }
+    }
+
+    /*package*/ void close() throws IOException {
+        selector.close();
+    }
+
+    private void execute(Runnable task) {
+        if (Thread.currentThread() == selectorThread) {
+            task.run();
+        } else {
+            selectorTasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        NonBlockingConnectionHandler<?> handler = (NonBlockingConnectionHandler<?>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                pool.submit(handler.getMailbox(), task);
+            }
+        }
+
+	    if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+        }
+    }
+}
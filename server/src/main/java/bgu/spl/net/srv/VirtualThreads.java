@@ -0,0 +1,102 @@
+package bgu.spl.net.srv;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads, when the server runs on Java 21 or later. the server is built for Java 17, so their API is
+ * looked up once when the class is loaded instead of being called directly.
+ */
+public final class VirtualThreads {
+
+    private static final MethodHandle OF_VIRTUAL; // Thread.ofVirtual()
+    private static final MethodHandle NAME; // Thread.Builder.name(String)
+    private static final MethodHandle NAME_COUNTED; // Thread.Builder.name(String, long)
+    private static final MethodHandle START; // Thread.Builder.start(Runnable)
+    private static final MethodHandle FACTORY; // Thread.Builder.factory()
+    private static final MethodHandle IS_VIRTUAL; // Thread.isVirtual()
+
+    static {
+        MethodHandle ofVirtual = null, name = null, nameCounted = null, start = null, factory = null, isVirtual = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual",
+                    MethodType.methodType(Class.forName("java.lang.Thread$Builder$OfVirtual")));
+            name = lookup.findVirtual(builder, "name", MethodType.methodType(builder, String.class));
+            nameCounted = lookup.findVirtual(builder, "name", MethodType.methodType(builder, String.class, long.class));
+            start = lookup.findVirtual(builder, "start", MethodType.methodType(Thread.class, Runnable.class));
+            factory = lookup.findVirtual(builder, "factory", MethodType.methodType(ThreadFactory.class));
+            isVirtual = lookup.findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException ex) {
+            ofVirtual = null; //before Java 21
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        NAME_COUNTED = nameCounted;
+        START = start;
+        FACTORY = factory;
+        IS_VIRTUAL = isVirtual;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the Java running the server has virtual threads
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @return true if the thread is a virtual one
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (!isSupported()) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invoke(thread);
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return a factory of virtual threads named the prefix followed by 0, 1, 2 ...
+     * @throws UnsupportedOperationException before Java 21
+     */
+    public static ThreadFactory factory(String prefix) {
+        try {
+            return (ThreadFactory) FACTORY.invoke(NAME_COUNTED.invoke(ofVirtual(), prefix, 0L));
+        } catch (UnsupportedOperationException ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * starts the task on a new virtual thread with the name
+     * @throws UnsupportedOperationException before Java 21
+     */
+    public static Thread start(String name, Runnable task) {
+        try {
+            return (Thread) START.invoke(NAME.invoke(ofVirtual(), name), task);
+        } catch (UnsupportedOperationException ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Object ofVirtual() throws Throwable {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("virtual threads need Java 21 or later");
+        }
+        return OF_VIRTUAL.invoke();
+    }
+}